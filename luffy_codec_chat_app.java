@@ -5,9 +5,34 @@ Files (all combined here for convenience) - split into separate .java files when
  - server/ChatServer.java
  - server/ClientHandler.java
  - server/DBHelper.java
+ - server/ConnectionPool.java, server/PooledConnection.java (JDBC pool used by DBHelper)
+ - server/AuthService.java (password hashing, login checks on a bounded pool, cached user rows)
+ - server/UserDirectory.java (all users' ids and names in memory: lookups and GET_USERS paging)
+ - server/MessageJournal.java (write-behind batching of chat messages)
+ - server/PendingMessages.java (private messages waiting for an offline recipient, delivered at login)
+ - server/Sequencer.java, server/ConversationAcks.java (per-conversation sequence numbers, ACK and RESUME)
+ - server/MessageStore.java, server/JdbcMessageStore.java, server/LogMessageStore.java (message persistence: MySQL or local log)
+ - server/MessagePartitions.java, server/ArchiveStore.java (monthly partitions, archived months as gzip segments)
+ - server/IntSet.java, server/GroupCache.java (cached group memberships)
+ - server/SessionRegistry.java (logged-in sessions by name, id and group)
+ - server/Presence.java (batched ONLINE/OFFLINE notifications)
+ - server/FanoutEngine.java (group message delivery on worker threads)
+ - server/HistoryCache.java (newest messages of active conversations, in front of history queries)
+ - server/ClusterNode.java (multi-node mode: presence exchange and message forwarding between servers)
+ - server/Op.java, server/Frame.java (protocol opcodes, text/binary encoding of outgoing messages)
+ - server/SharedBuffer.java (pooled, reference-counted buffers holding encoded frames)
+ - server/CommandParser.java, server/InputBuffer.java (in-place parsing of incoming lines/frames)
+ - server/ClientConnection.java, server/SocketConnection.java (transport used by ClientHandler)
+ - server/OutboundQueue.java (bounded per-connection send queue with overflow policy)
+ - server/NioServer.java (optional java.nio selector event loop, -Dchat.io=nio)
  - server/Models.java (User, Message, Group)
  - client/ChatClient.java
+ - client/Wire.java (client side of the text/binary protocol)
+ - client/SeqTracker.java (received sequence numbers per conversation, for ACK and RESUME)
+ - client/LoadBench.java (connection load generator for comparing server modes)
  - client/MainApp.java (JavaFX)
+ - bench/DispatchBenchmark.java (JMH benchmark of inbound command parsing)
+ - bench/HistoryQueryBench.java (seeds messages and times history queries at 10M/100M rows)
  - client/Controllers.java (LoginController, ChatController)
 
 Also included: database schema and README instructions at the bottom.
@@ -21,32 +46,47 @@ Adjust, secure, and harden for production.
 // ==========================
 package server;
 
+import java.io.IOException;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class DBHelper {
-    private final String url;
-    private final String user;
-    private final String pass;
+    // -Dchat.db.poolSize, -Dchat.db.acquireTimeoutMs, -Dchat.db.stmtCacheSize
+    private static final int POOL_SIZE = Integer.getInteger("chat.db.poolSize", 16);
+    private static final int ACQUIRE_TIMEOUT_MS = Integer.getInteger("chat.db.acquireTimeoutMs", 5000);
+    private static final int STMT_CACHE_SIZE = Integer.getInteger("chat.db.stmtCacheSize", 64);
+    // rows fetched per round trip for history reads; needs useCursorFetch=true in the JDBC URL, otherwise
+    // Connector/J reads the whole (LIMITed) result before the first row is handed out
+    private static final int HISTORY_FETCH_SIZE = Integer.getInteger("chat.history.fetchSize", 100);
+
+    private final ConnectionPool pool;
+    private volatile ArchiveStore archive; // history older than the live partitions, if archiving is used
 
     public DBHelper(String url, String user, String pass) throws ClassNotFoundException {
-        this.url = url;
-        this.user = user;
-        this.pass = pass;
         Class.forName("com.mysql.cj.jdbc.Driver");
+        this.pool = new ConnectionPool(url, user, pass, POOL_SIZE, ACQUIRE_TIMEOUT_MS, STMT_CACHE_SIZE);
     }
 
-    private Connection getConn() throws SQLException {
-        return DriverManager.getConnection(url, user, pass);
+    // Borrowed connection; closing it hands it back to the pool. Statements from c.prepare() are
+    // cached on the connection and must not be closed by the caller.
+    private PooledConnection getConn() throws SQLException {
+        return pool.acquire();
     }
 
-    // Authentication
-    public boolean registerUser(String username, String password) throws SQLException {
+    public ConnectionPool getPool() { return pool; }
+
+    public void setArchive(ArchiveStore archive) { this.archive = archive; }
+
+    // Authentication (hashing and checking passwords is AuthService's job)
+    public boolean registerUser(String username, String passwordHash) throws SQLException {
         String q = "INSERT INTO users(username,password) VALUES(?,?)";
-        try (Connection c = getConn(); PreparedStatement ps = c.prepareStatement(q)) {
+        try (PooledConnection c = getConn()) {
+            PreparedStatement ps = c.prepare(q);
             ps.setString(1, username);
-            ps.setString(2, password); // NOTE: store hashed passwords in production
+            ps.setString(2, passwordHash);
             ps.executeUpdate();
             return true;
         } catch (SQLException e) {
@@ -54,22 +94,45 @@ public class DBHelper {
         }
     }
 
-    public Integer authenticate(String username, String password) throws SQLException {
-        String q = "SELECT id FROM users WHERE username=? AND password=?";
-        try (Connection c = getConn(); PreparedStatement ps = c.prepareStatement(q)) {
-            ps.setString(1, username);
-            ps.setString(2, password);
-            try (ResultSet rs = ps.executeQuery()) {
-                if (rs.next()) return rs.getInt("id");
-                return null;
+    // username -> {id, stored password} for those of the names that exist, in one query. The IN list is
+    // padded to a few fixed sizes (repeating the last name) so the statement cache holds four statements
+    // rather than one per batch size.
+    public Map<String, Object[]> getCredentials(List<String> usernames) throws SQLException {
+        Map<String, Object[]> res = new HashMap<>();
+        for (int from = 0; from < usernames.size(); from += CREDENTIAL_SIZES[CREDENTIAL_SIZES.length - 1]) {
+            List<String> part = usernames.subList(from, Math.min(usernames.size(), from + CREDENTIAL_SIZES[CREDENTIAL_SIZES.length - 1]));
+            int n = CREDENTIAL_SIZES[0];
+            for (int size: CREDENTIAL_SIZES) { n = size; if (size >= part.size()) break; }
+            StringBuilder q = new StringBuilder("SELECT id, username, password FROM users WHERE username IN (?");
+            for (int i = 1; i < n; i++) q.append(",?");
+            q.append(')');
+            try (PooledConnection c = getConn()) {
+                PreparedStatement ps = c.prepare(q.toString());
+                for (int i = 0; i < n; i++) ps.setString(i + 1, part.get(Math.min(i, part.size() - 1)));
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) res.put(rs.getString(2), new Object[] { rs.getInt(1), rs.getString(3) });
+                }
             }
         }
+        return res;
+    }
+    private static final int[] CREDENTIAL_SIZES = { 1, 8, 32, 128 };
+
+    public void updatePassword(int userId, String passwordHash) throws SQLException {
+        String q = "UPDATE users SET password=? WHERE id=?";
+        try (PooledConnection c = getConn()) {
+            PreparedStatement ps = c.prepare(q);
+            ps.setString(1, passwordHash);
+            ps.setInt(2, userId);
+            ps.executeUpdate();
+        }
     }
 
     // message history
     public void saveMessage(int fromId, Integer toId, Integer groupId, String content, Timestamp ts) throws SQLException {
         String q = "INSERT INTO messages(from_user_id,to_user_id,group_id,content,created_at) VALUES(?,?,?,?,?)";
-        try (Connection c = getConn(); PreparedStatement ps = c.prepareStatement(q)) {
+        try (PooledConnection c = getConn()) {
+            PreparedStatement ps = c.prepare(q);
             ps.setInt(1, fromId);
             if (toId == null) ps.setNull(2, Types.INTEGER); else ps.setInt(2, toId);
             if (groupId == null) ps.setNull(3, Types.INTEGER); else ps.setInt(3, groupId);
@@ -79,379 +142,6361 @@ public class DBHelper {
         }
     }
 
-    public List<String> getPrivateHistory(int userA, int userB, int limit) throws SQLException {
-        String q = "SELECT u1.username AS from_username, m.content, m.created_at FROM messages m JOIN users u1 ON m.from_user_id=u1.id " +
-                "WHERE ((m.from_user_id=? AND m.to_user_id=?) OR (m.from_user_id=? AND m.to_user_id=?)) ORDER BY m.created_at ASC LIMIT ?";
-        try (Connection c = getConn(); PreparedStatement ps = c.prepareStatement(q)) {
-            ps.setInt(1, userA); ps.setInt(2, userB); ps.setInt(3, userB); ps.setInt(4, userA); ps.setInt(5, limit);
+    // Batched insert used by MessageJournal. Add rewriteBatchedStatements=true to the JDBC URL so
+    // Connector/J sends the batch as multi-row INSERTs instead of one round trip per row.
+    // Sets each message's id from the generated keys (HistoryCache hands them out as cursors).
+    public void saveMessages(List<Models.Message> batch) throws SQLException {
+        String q = "INSERT INTO messages(from_user_id,to_user_id,group_id,content,created_at,seq) VALUES(?,?,?,?,?,?)";
+        try (PooledConnection c = getConn()) {
+            PreparedStatement ps = c.prepare(q, Statement.RETURN_GENERATED_KEYS);
+            for (Models.Message m: batch) {
+                ps.setInt(1, m.fromId);
+                if (m.toId == null) ps.setNull(2, Types.INTEGER); else ps.setInt(2, m.toId);
+                if (m.groupId == null) ps.setNull(3, Types.INTEGER); else ps.setInt(3, m.groupId);
+                ps.setString(4, m.content);
+                ps.setTimestamp(5, m.createdAt);
+                ps.setLong(6, m.seq);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+            try (ResultSet rs = ps.getGeneratedKeys()) {
+                for (int i = 0; i < batch.size() && rs.next(); i++) batch.get(i).id = rs.getLong(1);
+            }
+        }
+    }
+
+    // messages.conv_key of a private conversation: the same for both directions (see the schema)
+    public static long convKey(int userA, int userB) {
+        return ((long) Math.min(userA, userB) << 32) | Math.max(userA, userB);
+    }
+
+    // Keyset pagination: up to `limit` messages with id < beforeId, newest first, handed to `out` one
+    // row at a time. Returns the cursor for the next (older) page, or 0 when there is nothing older
+    // (one row more than the page is read to know).
+    // Both history queries are a range scan on (conv_key, id) / (group_id, id), however big the table is.
+    public long streamPrivateHistory(int userA, int userB, long beforeId, int limit, MessageStore.HistoryRow out) throws SQLException {
+        String q = "SELECT m.id, u1.username AS from_username, m.content, m.created_at FROM messages m JOIN users u1 ON m.from_user_id=u1.id " +
+                "WHERE m.conv_key=? AND m.id < ? ORDER BY m.id DESC LIMIT ?";
+        try (PooledConnection c = getConn()) {
+            PreparedStatement ps = c.prepare(q);
+            ps.setLong(1, convKey(userA, userB)); ps.setLong(2, beforeId); ps.setInt(3, limit + 1);
+            return streamHistory(ps, HistoryCache.privateKey(userA, userB), beforeId, limit, out);
+        }
+    }
+
+    public long streamGroupHistory(int groupId, long beforeId, int limit, MessageStore.HistoryRow out) throws SQLException {
+        String q = "SELECT m.id, u.username AS from_username, m.content, m.created_at FROM messages m JOIN users u ON m.from_user_id=u.id " +
+                "WHERE m.group_id=? AND m.id < ? ORDER BY m.id DESC LIMIT ?";
+        try (PooledConnection c = getConn()) {
+            PreparedStatement ps = c.prepare(q);
+            ps.setInt(1, groupId); ps.setLong(2, beforeId); ps.setInt(3, limit + 1);
+            return streamHistory(ps, HistoryCache.groupKey(groupId), beforeId, limit, out);
+        }
+    }
+
+    // The rest of a page the live table can't fill comes from archived months (their ids are all older).
+    private long streamHistory(PreparedStatement ps, long key, long beforeId, int limit, MessageStore.HistoryRow out) throws SQLException {
+        ps.setFetchSize(HISTORY_FETCH_SIZE);
+        long last = 0;
+        int n = 0;
+        boolean older = false;
+        try (ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                if (n == limit) { older = true; break; }
+                last = rs.getLong(1);
+                out.accept(last, rs.getString(2), rs.getString(3), rs.getTimestamp(4));
+                n++;
+            }
+        }
+        ArchiveStore a = archive;
+        if (!older && a != null) {
+            int want = limit - n;
+            long[] lastId = { last };
+            int[] sent = { 0 };
+            try {
+                // one more than wanted as well, only to learn whether there is an older page
+                older = a.read(key, n == 0 ? beforeId : last, want + 1, (id, from, content, ts) -> {
+                    if (sent[0] == want) return;
+                    sent[0]++;
+                    lastId[0] = id;
+                    out.accept(id, from, content, ts);
+                }) > want;
+            } catch (IOException e) {
+                throw new SQLException("Archive read failed: " + e.getMessage(), e);
+            }
+            last = lastId[0];
+        }
+        return older ? last : 0;
+    }
+
+    // sequence numbers (see Sequencer); keys as in HistoryCache, served by (conv_key, seq) / (group_id, seq)
+    public long lastSeq(long key) throws SQLException {
+        String q = key < 0 ? "SELECT MAX(seq) FROM messages WHERE group_id=?" : "SELECT MAX(seq) FROM messages WHERE conv_key=?";
+        try (PooledConnection c = getConn()) {
+            PreparedStatement ps = c.prepare(q);
+            ps.setLong(1, key < 0 ? -key : key);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0;
+            }
+        }
+    }
+
+    public long streamSince(long key, long afterSeq, int limit, MessageStore.HistoryRow out) throws SQLException {
+        String q = "SELECT m.seq, u.username, m.content, m.created_at FROM messages m JOIN users u ON m.from_user_id=u.id WHERE " +
+                (key < 0 ? "m.group_id=?" : "m.conv_key=?") + " AND m.seq > ? ORDER BY m.seq LIMIT ?";
+        try (PooledConnection c = getConn()) {
+            PreparedStatement ps = c.prepare(q);
+            ps.setLong(1, key < 0 ? -key : key); ps.setLong(2, afterSeq); ps.setInt(3, limit);
+            ps.setFetchSize(HISTORY_FETCH_SIZE);
+            long last = 0;
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    last = rs.getLong(1);
+                    out.accept(last, rs.getString(2), rs.getString(3), rs.getTimestamp(4));
+                }
+            }
+            return last;
+        }
+    }
+
+    public Map<Long, Long> getAcks(int userId) throws SQLException {
+        String q = "SELECT conv_key, seq FROM conversation_acks WHERE user_id=?";
+        try (PooledConnection c = getConn()) {
+            PreparedStatement ps = c.prepare(q);
+            ps.setInt(1, userId);
+            try (ResultSet rs = ps.executeQuery()) {
+                Map<Long, Long> res = new HashMap<>();
+                while (rs.next()) res.put(rs.getLong(1), rs.getLong(2));
+                return res;
+            }
+        }
+    }
+
+    // a conversation that numbers from 1 again (see ConversationAcks.reset): the one write that moves an ack back
+    public void resetAck(int userId, long conv, long seq) throws SQLException {
+        String q = "UPDATE conversation_acks SET seq=? WHERE user_id=? AND conv_key=?";
+        try (PooledConnection c = getConn()) {
+            PreparedStatement ps = c.prepare(q);
+            ps.setLong(1, seq); ps.setInt(2, userId); ps.setLong(3, conv);
+            ps.executeUpdate();
+        }
+    }
+
+    // user id -> (conversation -> seq); an ack never moves a stored seq backwards
+    public int saveAcks(Map<Integer, Map<Long, Long>> acks) throws SQLException {
+        String q = "INSERT INTO conversation_acks(user_id,conv_key,seq) VALUES(?,?,?) ON DUPLICATE KEY UPDATE seq=GREATEST(seq,VALUES(seq))";
+        try (PooledConnection c = getConn()) {
+            PreparedStatement ps = c.prepare(q);
+            int n = 0;
+            for (Map.Entry<Integer, Map<Long, Long>> u: acks.entrySet()) {
+                for (Map.Entry<Long, Long> a: u.getValue().entrySet()) {
+                    ps.setInt(1, u.getKey()); ps.setLong(2, a.getKey()); ps.setLong(3, a.getValue());
+                    ps.addBatch();
+                    n++;
+                }
+            }
+            ps.executeBatch();
+            return n;
+        }
+    }
+
+    // partitions of messages (RANGE by month, see MessagePartitions)
+    public List<String> getMessagePartitions() throws SQLException {
+        String q = "SELECT PARTITION_NAME FROM INFORMATION_SCHEMA.PARTITIONS WHERE TABLE_SCHEMA=DATABASE() AND TABLE_NAME='messages' " +
+                "AND PARTITION_NAME IS NOT NULL ORDER BY PARTITION_ORDINAL_POSITION";
+        try (PooledConnection c = getConn(); ResultSet rs = c.prepare(q).executeQuery()) {
+            List<String> res = new ArrayList<>();
+            while (rs.next()) res.add(rs.getString(1));
+            return res;
+        }
+    }
+
+    // partition names can't be bound as parameters; only pYYYYMM names reach the SQL
+    private static String partitionName(String name) {
+        if (!name.matches("p\\d{6}")) throw new IllegalArgumentException("Bad partition name " + name);
+        return name;
+    }
+
+    // splits the (empty) pmax partition so rows before `lessThanEpochSec` go to a new partition
+    public void addMessagePartition(String name, long lessThanEpochSec) throws SQLException {
+        String q = "ALTER TABLE messages REORGANIZE PARTITION pmax INTO (PARTITION " + partitionName(name) +
+                " VALUES LESS THAN (" + lessThanEpochSec + "), PARTITION pmax VALUES LESS THAN MAXVALUE)";
+        try (PooledConnection c = getConn(); Statement st = c.createStatement()) {
+            st.executeUpdate(q);
+        }
+    }
+
+    public void dropMessagePartition(String name) throws SQLException {
+        try (PooledConnection c = getConn(); Statement st = c.createStatement()) {
+            st.executeUpdate("ALTER TABLE messages DROP PARTITION " + partitionName(name));
+        }
+    }
+
+    public interface ArchiveRow {
+        void accept(long key, long id, String fromUsername, String content, Timestamp createdAt);
+    }
+
+    // Every message of one partition ordered by (conversation key, id), keys as in HistoryCache.
+    // Messages with neither a recipient nor a group can't be asked for and are left out.
+    public void streamMessagePartition(String name, ArchiveRow out) throws SQLException {
+        String q = "SELECT IF(m.group_id IS NULL, m.conv_key, -m.group_id) AS k, m.id, u.username, m.content, m.created_at " +
+                "FROM messages PARTITION (" + partitionName(name) + ") m JOIN users u ON m.from_user_id=u.id " +
+                "WHERE m.conv_key IS NOT NULL OR m.group_id IS NOT NULL ORDER BY k, m.id";
+        try (PooledConnection c = getConn(); Statement st = c.createStatement()) {
+            st.setFetchSize(HISTORY_FETCH_SIZE);
+            try (ResultSet rs = st.executeQuery(q)) {
+                while (rs.next()) out.accept(rs.getLong(1), rs.getLong(2), rs.getString(3), rs.getString(4), rs.getTimestamp(5));
+            }
+        }
+    }
+
+    // pending deliveries (see PendingMessages), batched like saveMessages
+    public void savePending(List<Models.Message> batch) throws SQLException {
+        String q = "INSERT INTO pending_messages(user_id,from_username,content,created_at,conv_key,seq) VALUES(?,?,?,?,?,?)";
+        try (PooledConnection c = getConn()) {
+            PreparedStatement ps = c.prepare(q);
+            for (Models.Message m: batch) {
+                ps.setInt(1, m.toId);
+                ps.setString(2, m.fromUsername);
+                ps.setString(3, m.content);
+                ps.setTimestamp(4, m.createdAt);
+                ps.setLong(5, convKey(m.fromId, m.toId));
+                ps.setLong(6, m.seq);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+
+    // The user's oldest `limit` pending messages, oldest first. Returns the id of the last one, 0 if none.
+    public long streamPending(int userId, int limit, PendingMessages.Row out) throws SQLException {
+        String q = "SELECT id, from_username, content, created_at, conv_key, seq FROM pending_messages WHERE user_id=? ORDER BY id LIMIT ?";
+        try (PooledConnection c = getConn()) {
+            PreparedStatement ps = c.prepare(q);
+            ps.setInt(1, userId);
+            ps.setInt(2, limit);
+            long last = 0;
             try (ResultSet rs = ps.executeQuery()) {
-                List<String> res = new ArrayList<>();
                 while (rs.next()) {
-                    res.add(String.format("[%s] %s: %s", rs.getTimestamp("created_at"), rs.getString("from_username"), rs.getString("content")));
+                    last = rs.getLong(1);
+                    out.accept(rs.getString(2), rs.getString(3), rs.getTimestamp(4), rs.getLong(5), rs.getLong(6));
                 }
+            }
+            return last;
+        }
+    }
+
+    public int deletePending(int userId, long upToId) throws SQLException {
+        String q = "DELETE FROM pending_messages WHERE user_id=? AND id<=?";
+        try (PooledConnection c = getConn()) {
+            PreparedStatement ps = c.prepare(q);
+            ps.setInt(1, userId);
+            ps.setLong(2, upToId);
+            return ps.executeUpdate();
+        }
+    }
+
+    // user list (UserDirectory keeps it in memory)
+    public interface UserRow { void accept(int id, String username); }
+
+    // up to `limit` users with ids above afterId, in id order; returns how many were read
+    public int getUsersAfter(int afterId, int limit, UserRow out) throws SQLException {
+        String q = "SELECT id, username FROM users WHERE id > ? ORDER BY id LIMIT ?";
+        try (PooledConnection c = getConn()) {
+            PreparedStatement ps = c.prepare(q);
+            ps.setInt(1, afterId); ps.setInt(2, limit);
+            int n = 0;
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) { out.accept(rs.getInt(1), rs.getString(2)); n++; }
+            }
+            return n;
+        }
+    }
+
+    // groups
+    public int createGroup(String name, int ownerId) throws SQLException {
+        String q = "INSERT INTO groups(name, owner_id) VALUES(?,?)";
+        try (PooledConnection c = getConn()) {
+            PreparedStatement ps = c.prepare(q, Statement.RETURN_GENERATED_KEYS);
+            ps.setString(1, name);
+            ps.setInt(2, ownerId);
+            ps.executeUpdate();
+            try (ResultSet rs = ps.getGeneratedKeys()) {
+                if (rs.next()) return rs.getInt(1);
+                else throw new SQLException("Failed to create group");
+            }
+        }
+    }
+
+    public void addUserToGroup(int userId, int groupId) throws SQLException {
+        String q = "INSERT IGNORE INTO group_members(group_id,user_id) VALUES(?,?)";
+        try (PooledConnection c = getConn()) {
+            PreparedStatement ps = c.prepare(q);
+            ps.setInt(1, groupId);
+            ps.setInt(2, userId);
+            ps.executeUpdate();
+        }
+    }
+
+    public List<Integer> getUserGroups(int userId) throws SQLException {
+        String q = "SELECT group_id FROM group_members WHERE user_id=?";
+        try (PooledConnection c = getConn()) {
+            PreparedStatement ps = c.prepare(q);
+            ps.setInt(1, userId);
+            try (ResultSet rs = ps.executeQuery()) {
+                List<Integer> res = new ArrayList<>();
+                while (rs.next()) res.add(rs.getInt("group_id"));
+                return res;
+            }
+        }
+    }
+
+    public List<Integer> getGroupMembers(int groupId) throws SQLException {
+        String q = "SELECT user_id FROM group_members WHERE group_id=?";
+        try (PooledConnection c = getConn()) {
+            PreparedStatement ps = c.prepare(q);
+            ps.setInt(1, groupId);
+            try (ResultSet rs = ps.executeQuery()) {
+                List<Integer> res = new ArrayList<>();
+                while (rs.next()) res.add(rs.getInt("user_id"));
                 return res;
             }
         }
     }
+}
+
+// ==========================
+// server/ConnectionPool.java
+// ==========================
+package server;
+
+import java.sql.*;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ Small bounded JDBC pool owned by DBHelper. At most maxSize connections exist; callers wait up to
+ acquireTimeoutMs for one and then get an SQLTimeoutException. Idle connections are reused newest
+ first and re-validated with isValid() when they sat idle longer than VALIDATE_AFTER_MS.
+*/
+public class ConnectionPool {
+    private static final long VALIDATE_AFTER_MS = 30_000;
+
+    private final String url;
+    private final String user;
+    private final String pass;
+    private final int maxSize;
+    private final long acquireTimeoutMs;
+    private final int stmtCacheSize;
+    private final Semaphore permits;
+    private final Deque<PooledConnection> idle = new ConcurrentLinkedDeque<>();
+
+    // metrics
+    private final AtomicLong acquires = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+
+    public ConnectionPool(String url, String user, String pass, int maxSize, long acquireTimeoutMs, int stmtCacheSize) {
+        this.url = url;
+        this.user = user;
+        this.pass = pass;
+        this.maxSize = maxSize;
+        this.acquireTimeoutMs = acquireTimeoutMs;
+        this.stmtCacheSize = stmtCacheSize;
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    public PooledConnection acquire() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(acquireTimeoutMs, TimeUnit.MILLISECONDS)) {
+                timeouts.incrementAndGet();
+                throw new SQLTimeoutException("No database connection available within " + acquireTimeoutMs + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        }
+        long waited = System.nanoTime() - start;
+        acquires.incrementAndGet();
+        waitNanos.addAndGet(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+
+        try {
+            PooledConnection pc;
+            while ((pc = idle.pollFirst()) != null) {
+                if (pc.isUsable(VALIDATE_AFTER_MS)) return pc;
+                discard(pc);
+            }
+            pc = new PooledConnection(DriverManager.getConnection(url, user, pass), this, stmtCacheSize);
+            opened.incrementAndGet();
+            return pc;
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    void release(PooledConnection pc) {
+        if (pc.isBroken()) discard(pc); else idle.offerFirst(pc);
+        permits.release();
+    }
+
+    private void discard(PooledConnection pc) {
+        discarded.incrementAndGet();
+        pc.closeQuietly();
+    }
+
+    public void close() {
+        PooledConnection pc;
+        while ((pc = idle.pollFirst()) != null) pc.closeQuietly();
+    }
+
+    @Override
+    public String toString() {
+        long n = acquires.get();
+        return String.format("db pool: size=%d in-use=%d idle=%d acquires=%d timeouts=%d avg-wait=%.2fms max-wait=%.2fms opened=%d discarded=%d",
+                maxSize, maxSize - permits.availablePermits(), idle.size(), n, timeouts.get(),
+                n == 0 ? 0.0 : waitNanos.get() / 1e6 / n, maxWaitNanos.get() / 1e6, opened.get(), discarded.get());
+    }
+}
+
+// ==========================
+// server/PooledConnection.java
+// ==========================
+package server;
+
+import java.sql.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// A pooled JDBC connection with its own prepared-statement cache. Used by one thread at a time.
+public class PooledConnection implements AutoCloseable {
+    private final Connection conn;
+    private final ConnectionPool pool;
+    private final Map<String, PreparedStatement> statements;
+    private long lastUsed = System.currentTimeMillis();
+
+    PooledConnection(Connection conn, ConnectionPool pool, int cacheSize) {
+        this.conn = conn;
+        this.pool = pool;
+        this.statements = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> e) {
+                if (size() <= cacheSize) return false;
+                try { e.getValue().close(); } catch (SQLException ignored) {}
+                return true;
+            }
+        };
+    }
+
+    public PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement ps = statements.get(sql);
+        if (ps == null) {
+            ps = conn.prepareStatement(sql);
+            statements.put(sql, ps);
+        }
+        return ps;
+    }
+
+    public PreparedStatement prepare(String sql, int autoGeneratedKeys) throws SQLException {
+        String key = autoGeneratedKeys + "#" + sql;
+        PreparedStatement ps = statements.get(key);
+        if (ps == null) {
+            ps = conn.prepareStatement(sql, autoGeneratedKeys);
+            statements.put(key, ps);
+        }
+        return ps;
+    }
+
+    // one-off statement for DDL or SQL that can't be prepared with parameters; not cached, close it
+    public Statement createStatement() throws SQLException {
+        return conn.createStatement();
+    }
+
+    boolean isUsable(long validateAfterMs) {
+        try {
+            if (conn.isClosed()) return false;
+            return System.currentTimeMillis() - lastUsed < validateAfterMs || conn.isValid(2);
+        } catch (SQLException e) { return false; }
+    }
+
+    // Connector/J closes the connection itself after a communications failure
+    boolean isBroken() {
+        try { return conn.isClosed(); } catch (SQLException e) { return true; }
+    }
+
+    void closeQuietly() {
+        try { conn.close(); } catch (SQLException ignored) {}
+    }
+
+    @Override
+    public void close() {
+        lastUsed = System.currentTimeMillis();
+        pool.release(this);
+    }
+}
+
+// ==========================
+// server/AuthService.java
+// ==========================
+package server;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/*
+ LOGIN and REGISTER checks. Passwords are stored as PBKDF2-HMAC-SHA256 hashes
+ (pbkdf2$<iterations>$<salt>$<hash>, Base64) and hashed on a bounded pool of `threads`, so a login storm
+ queues for CPU instead of taking all of it; when more than `queueSize` are waiting, logins are refused
+ and clients retry. Identical logins in flight (same user and password, e.g. a client retrying) share one
+ check. User rows (id and stored hash) are cached for `ttlSec`; misses are read by a loader thread, up to
+ LOAD_BATCH names per query, so a reconnect storm costs the database a few IN queries rather than one
+ query per login. A login's row is loaded before its check is queued, so hashing threads never wait for
+ the database. Nothing here blocks the caller: login/register return futures that fail after `waitMs`. The cache also answers username -> id lookups for the message path; names that don't
+ exist are remembered for up to MISSING_TTL_MS, so messages to a mistyped name don't query every time.
+ ttlSec=0 turns the cache off.
+ Rows still holding a plaintext password (from before hashing) or a hash with fewer iterations than
+ configured are accepted and rewritten with a new hash.
+*/
+public class AuthService {
+    private static final int LOAD_BATCH = 128;
+    private static final String PREFIX = "pbkdf2$";
+    private static final long MISSING_TTL_MS = 5000;
+
+    private static final class Credential {
+        final int id;
+        final String password; // as stored; null: no such user
+        final long loadedAt;
+        Credential(int id, String password) { this.id = id; this.password = password; this.loadedAt = System.currentTimeMillis(); }
+    }
+
+    private final DBHelper db;
+    private final int iterations;
+    private final long ttlMs;
+    private final long missingTtlMs;
+    private final long waitMs;
+    private final ThreadPoolExecutor pool;
+    private final SecureRandom random = new SecureRandom();
+    private final ConcurrentHashMap<String, Credential> cache = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CompletableFuture<Credential>> loading = new ConcurrentHashMap<>(); // value completes with null: no such user
+    private final LinkedBlockingQueue<String> toLoad = new LinkedBlockingQueue<>();
+    private final ConcurrentHashMap<String, CompletableFuture<Integer>> inFlight = new ConcurrentHashMap<>(); // user + '\n' + password
+
+    private final AtomicLong logins = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong refused = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong rehashed = new AtomicLong();
+
+    public AuthService(DBHelper db, int threads, int queueSize, int iterations, int ttlSec, long waitMs) {
+        this.db = db;
+        this.iterations = iterations;
+        this.ttlMs = ttlSec * 1000L;
+        this.missingTtlMs = Math.min(ttlMs, MISSING_TTL_MS);
+        this.waitMs = waitMs;
+        this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize), r -> {
+            Thread t = new Thread(r, "auth"); t.setDaemon(true); return t;
+        });
+        Thread loader = new Thread(this::loadLoop, "auth-loader");
+        loader.setDaemon(true);
+        loader.start();
+        if (ttlSec <= 0) return;
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "auth-cache"); t.setDaemon(true); return t;
+        });
+        timer.scheduleWithFixedDelay(() -> cache.values().removeIf(this::expired), ttlSec, ttlSec, TimeUnit.SECONDS);
+    }
+
+    // Completes with the user id, or null for a wrong user name or password.
+    public CompletableFuture<Integer> login(String username, String password) {
+        logins.incrementAndGet();
+        String key = username + '\n' + password;
+        CompletableFuture<Integer> f = new CompletableFuture<>();
+        CompletableFuture<Integer> running = inFlight.putIfAbsent(key, f);
+        if (running != null) {
+            coalesced.incrementAndGet();
+            return running;
+        }
+        f.whenComplete((id, e) -> inFlight.remove(key, f));
+        f.orTimeout(waitMs, TimeUnit.MILLISECONDS);
+        load(username).whenComplete((c, e) -> {
+            if (e != null) f.completeExceptionally(e);
+            else if (c == null) f.complete(null);
+            else submit(f, () -> check(username, password, c));
+        });
+        return f;
+    }
+
+    // Completes with false if the name is taken.
+    public CompletableFuture<Boolean> register(String username, String password) {
+        return submit(new CompletableFuture<Boolean>(), () -> {
+            boolean ok = db.registerUser(username, hash(password));
+            cache.remove(username);
+            return ok;
+        }).orTimeout(waitMs, TimeUnit.MILLISECONDS);
+    }
+
+    // The outcome of a finished login/register; a refused or timed out check is reported as SQLException,
+    // like a database failure.
+    public static <T> T result(CompletableFuture<T> f) throws SQLException {
+        try {
+            return f.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) throw (SQLException) cause;
+            if (cause instanceof TimeoutException) throw new SQLException("Login check timed out");
+            throw new SQLException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted");
+        }
+    }
+
+    // id of an existing user, null if there is none
+    public Integer userId(String username) throws SQLException {
+        Credential c = credential(username);
+        return c == null ? null : c.id;
+    }
+
+    private interface Check<T> { T call() throws Exception; }
+
+    private <T> CompletableFuture<T> submit(CompletableFuture<T> f, Check<T> check) {
+        try {
+            pool.execute(() -> {
+                try { f.complete(check.call()); } catch (Exception e) { f.completeExceptionally(e); }
+            });
+        } catch (RejectedExecutionException e) {
+            refused.incrementAndGet();
+            f.completeExceptionally(new SQLException("Too many logins waiting"));
+        }
+        return f;
+    }
+
+    private <T> T await(CompletableFuture<T> f) throws SQLException {
+        try {
+            return f.get(waitMs, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof SQLException ? (SQLException) e.getCause() : new SQLException(e.getCause());
+        } catch (TimeoutException e) {
+            throw new SQLException("Login check timed out");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted");
+        }
+    }
+
+    // hashing thread: c is the user's row, already loaded
+    private Integer check(String username, String password, Credential c) throws SQLException {
+        boolean hashed = c.password.startsWith(PREFIX);
+        if (!(hashed ? matches(password, c.password) : MessageDigest.isEqual(
+                password.getBytes(StandardCharsets.UTF_8), c.password.getBytes(StandardCharsets.UTF_8)))) return null;
+        if (!hashed || storedIterations(c.password) < iterations) {
+            String h = hash(password);
+            db.updatePassword(c.id, h);
+            cache(username, new Credential(c.id, h));
+            rehashed.incrementAndGet();
+        }
+        return c.id;
+    }
+
+    private Credential credential(String username) throws SQLException {
+        return await(load(username));
+    }
+
+    // the user's row from the cache, or once the loader has read it; null: no such user
+    private CompletableFuture<Credential> load(String username) {
+        Credential c = cache.get(username);
+        if (c != null && !expired(c)) {
+            hits.incrementAndGet();
+            return CompletableFuture.completedFuture(c.password == null ? null : c);
+        }
+        return loading.computeIfAbsent(username, k -> {
+            toLoad.add(k);
+            return new CompletableFuture<>();
+        });
+    }
+
+    private boolean expired(Credential c) {
+        return System.currentTimeMillis() - c.loadedAt > (c.password == null ? missingTtlMs : ttlMs);
+    }
+
+    private void cache(String username, Credential c) {
+        if (ttlMs > 0) cache.put(username, c);
+    }
+
+    private void loadLoop() {
+        List<String> batch = new ArrayList<>(LOAD_BATCH);
+        List<CompletableFuture<Credential>> futures = new ArrayList<>(LOAD_BATCH);
+        while (true) {
+            try {
+                batch.add(toLoad.take());
+                toLoad.drainTo(batch, LOAD_BATCH - 1);
+                for (String name: batch) futures.add(loading.get(name));
+                Map<String, Object[]> rows = null;
+                SQLException failed = null;
+                try {
+                    queries.incrementAndGet();
+                    rows = db.getCredentials(batch);
+                } catch (SQLException e) {
+                    failed = e;
+                }
+                for (String name: batch) {
+                    CompletableFuture<Credential> f = loading.remove(name);
+                    if (f == null) continue;
+                    if (failed != null) { f.completeExceptionally(failed); continue; }
+                    Object[] row = rows.get(name);
+                    Credential c = row == null ? null : new Credential((Integer) row[0], (String) row[1]);
+                    cache(name, c != null ? c : new Credential(0, null));
+                    f.complete(c);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                System.err.println("Auth loader: " + e.getMessage());
+            } finally {
+                // whatever the batch didn't answer (it failed half way) fails now rather than never; a newer
+                // future of the same name, added once ours was removed, isn't touched
+                for (int i = 0; i < futures.size(); i++) {
+                    CompletableFuture<Credential> f = futures.get(i);
+                    if (f == null || f.isDone()) continue;
+                    loading.remove(batch.get(i), f);
+                    f.completeExceptionally(new SQLException("Loading user " + batch.get(i) + " failed"));
+                }
+                batch.clear();
+                futures.clear();
+            }
+        }
+    }
+
+    private String hash(String password) {
+        byte[] salt = new byte[16];
+        random.nextBytes(salt);
+        Base64.Encoder b64 = Base64.getEncoder();
+        return PREFIX + iterations + "$" + b64.encodeToString(salt) + "$" + b64.encodeToString(pbkdf2(password, salt, iterations));
+    }
+
+    private static boolean matches(String password, String stored) {
+        String[] p = stored.split("\\$");
+        if (p.length != 4) return false;
+        Base64.Decoder b64 = Base64.getDecoder();
+        return MessageDigest.isEqual(pbkdf2(password, b64.decode(p[2]), Integer.parseInt(p[1])), b64.decode(p[3]));
+    }
+
+    private static int storedIterations(String stored) {
+        return Integer.parseInt(stored.substring(PREFIX.length(), stored.indexOf('$', PREFIX.length())));
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+        try {
+            SecretKeyFactory f = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+            return f.generateSecret(new PBEKeySpec(password.toCharArray(), salt, iterations, 256)).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("auth: logins=%d coalesced=%d refused=%d waiting=%d cache=%d hits=%d queries=%d rehashed=%d",
+                logins.get(), coalesced.get(), refused.get(), pool.getQueue().size(), cache.size(), hits.get(), queries.get(), rehashed.get());
+    }
+}
+
+// ==========================
+// server/UserDirectory.java
+// ==========================
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ Every registered user (id and name) in memory, so name/id lookups and the GET_USERS listing don't go to
+ MySQL. Filled at startup and kept current by add() on REGISTER and by refresh(), which reads ids above
+ the highest one seen (users registered through another node). Users are never renamed or deleted here.
+
+ Layout, about 50 bytes per user plus its UTF-8 name (10M users with 10-byte names: ~550 MB):
+  - names: length byte + UTF-8 bytes, packed into 1 MB pages; a name is addressed by one int
+  - slots: user i's id and name address in two int arrays
+  - byName / byId: open-addressing tables (linear probing, at most 3/4 full) of longs, the name's hash or
+    the id in the high half and slot+1 in the low half (0 = free). A probe only reads a name from the
+    pages when the hash matches, and an id lookup never does.
+  - sorted: slots in name order (unsigned UTF-8 bytes, i.e. code point order) for prefix paging. Newly
+    added names go to a small sorted delta, merged in when it reaches DELTA_MAX.
+ Lookups take no lock: a slot is filled before it is published in the tables (volatile array writes) and
+ grown arrays are swapped in only when complete. Adding and paging synchronize on the directory; refresh()
+ doesn't hold that lock while it reads the database (see there).
+*/
+public class UserDirectory {
+    public static final int MAX_NAME_BYTES = 255;
+    private static final int PAGE_BITS = 20;
+    private static final int PAGE = 1 << PAGE_BITS;
+    private static final int MAX_PAGES = 1 << (31 - PAGE_BITS);
+    private static final int DELTA_MAX = 4096;
+    private static final int LOAD_PAGE = 10_000;
+
+    private final DBHelper db;
+    private volatile Tables tables = new Tables();
+    private final Object refreshing = new Object(); // one refresh at a time
+
+    public UserDirectory(DBHelper db) {
+        this.db = db;
+    }
+
+    // loads everyone, then picks up users registered elsewhere every refreshSec (0 = never)
+    public void start(int refreshSec) {
+        long t0 = System.nanoTime();
+        try {
+            refresh();
+            System.out.println("User directory: " + size() + " users loaded in " + (System.nanoTime() - t0) / 1_000_000 + " ms");
+        } catch (SQLException e) {
+            System.err.println("User directory: load failed, continuing with lookups through the database: " + e.getMessage());
+        }
+        if (refreshSec <= 0) return;
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "user-directory"); t.setDaemon(true); return t;
+        });
+        timer.scheduleWithFixedDelay(() -> {
+            try { refresh(); } catch (SQLException e) { System.err.println("User directory: refresh failed: " + e.getMessage()); }
+        }, refreshSec, refreshSec, TimeUnit.SECONDS);
+    }
+
+    // Adds the rows with ids above the highest known one, LOAD_PAGE per query. Nothing is locked while the
+    // database is read: the first load fills new tables and publishes them in one write (with whatever add()
+    // registered meanwhile); later refreshes, usually a few rows, collect them and insert them under the lock.
+    public void refresh() throws SQLException {
+        synchronized (refreshing) {
+            Tables cur;
+            int after;
+            synchronized (this) { cur = tables; after = cur.maxId; }
+            if (cur.size == 0) {
+                Tables fresh = new Tables();
+                fresh.maxId = after;
+                try {
+                    load(after, fresh::insertRow);
+                } finally {
+                    fresh.index(0, fresh.size);
+                    synchronized (this) {
+                        Tables meanwhile = tables;
+                        int first = fresh.size;
+                        for (int s = 0; s < meanwhile.size; s++) fresh.insert(meanwhile.ids[s], meanwhile.string(s));
+                        fresh.index(first, fresh.size);
+                        tables = fresh;
+                    }
+                }
+            } else {
+                List<Object[]> rows = new ArrayList<>();
+                try {
+                    load(after, (id, name) -> rows.add(new Object[] { id, name }));
+                } finally {
+                    synchronized (this) {
+                        Tables t = tables;
+                        int first = t.size;
+                        for (Object[] r: rows) t.insertRow((Integer) r[0], (String) r[1]);
+                        t.index(first, t.size);
+                    }
+                }
+            }
+        }
+    }
+
+    private void load(int after, DBHelper.UserRow out) throws SQLException {
+        int[] max = { after };
+        int rows;
+        do {
+            rows = db.getUsersAfter(max[0], LOAD_PAGE, (id, name) -> {
+                out.accept(id, name);
+                if (id > max[0]) max[0] = id;
+            });
+        } while (rows == LOAD_PAGE);
+    }
+
+    // false if the id or name is already known
+    public synchronized boolean add(int id, String name) {
+        Tables t = tables;
+        int first = t.size;
+        if (!t.insert(id, name)) return false;
+        t.index(first, t.size); // maxId stays: lower ids added elsewhere may still be missing
+        return true;
+    }
+
+    public Integer id(String name) { return tables.id(name); }
+
+    public String name(int id) { return tables.name(id); }
+
+    public int size() { return tables.size; }
+
+    // Up to `limit` names in name order that start with `prefix` and sort after `after` ("" = from the start).
+    public synchronized List<String> page(String prefix, String after, int limit) {
+        return tables.page(prefix, after, limit);
+    }
+
+    // everything a lookup reads; replaced as a whole when refresh() builds a new one
+    private static final class Tables {
+        volatile byte[][] pages = new byte[16][];
+        volatile int[] ids = new int[1024];
+        volatile int[] names = new int[1024];
+        volatile AtomicLongArray byName = new AtomicLongArray(2048);
+        volatile AtomicLongArray byId = new AtomicLongArray(2048);
+        volatile int size;
+
+        // writer side, guarded by the directory (or owned by refresh() until published)
+        int page = -1, pageUsed = PAGE;
+        int[] sorted = new int[0];
+        private int[] delta = new int[DELTA_MAX];
+        private int deltaSize;
+        int maxId;
+
+        Integer id(String name) {
+            int s = slotOf(utf8(name));
+            return s < 0 ? null : ids[s];
+        }
+
+        String name(int id) {
+            int s = slotOf(id);
+            return s < 0 ? null : string(s);
+        }
+
+        List<String> page(String prefix, String after, int limit) {
+            byte[] p = utf8(prefix), a = utf8(after);
+            // first position that is both >= prefix and > after
+            boolean fromAfter = compare(a, p) >= 0;
+            byte[] key = fromAfter ? a : p;
+            int i = bound(sorted, sorted.length, key, fromAfter), j = bound(delta, deltaSize, key, fromAfter);
+            List<String> res = new ArrayList<>(Math.min(limit, 256));
+            while (res.size() < limit) {
+                int s;
+                if (i < sorted.length && (j == deltaSize || compare(sorted[i], delta[j]) < 0)) s = sorted[i++];
+                else if (j < deltaSize) s = delta[j++];
+                else break;
+                if (!startsWith(s, p)) break;
+                res.add(string(s));
+            }
+            return res;
+        }
+
+        // a row read by refresh(); maxId also moves past rows insert() refuses, so they aren't read again
+        void insertRow(int id, String name) {
+            insert(id, name);
+            if (id > maxId) maxId = id;
+        }
+
+        boolean insert(int id, String name) {
+            byte[] b = utf8(name);
+            if (b.length > MAX_NAME_BYTES || slotOf(b) >= 0 || slotOf(id) >= 0) return false;
+            int slot = size;
+            if (slot == ids.length) {
+                int n = slot * 2;
+                ids = Arrays.copyOf(ids, n);
+                names = Arrays.copyOf(names, n);
+            }
+            int addr = store(b);
+            if (addr < 0) return false;
+            ids[slot] = id;
+            names[slot] = addr;
+            if ((slot + 1) * 4L > byName.length() * 3L) rehash(byName.length() * 2, slot);
+            put(byName, hash(b, 0, b.length), slot);
+            put(byId, id, slot);
+            size = slot + 1;
+            return true;
+        }
+
+        private int store(byte[] b) {
+            if (pageUsed + 1 + b.length > PAGE) {
+                if (page + 1 == MAX_PAGES) {
+                    System.err.println("User directory: name space full, not adding more users");
+                    return -1;
+                }
+                if (page + 1 == pages.length) pages = Arrays.copyOf(pages, pages.length * 2);
+                pages[page + 1] = new byte[PAGE];
+                page++;
+                pageUsed = 0;
+            }
+            byte[] p = pages[page];
+            p[pageUsed] = (byte) b.length;
+            System.arraycopy(b, 0, p, pageUsed + 1, b.length);
+            int addr = page << PAGE_BITS | pageUsed;
+            pageUsed += 1 + b.length;
+            return addr;
+        }
+
+        // new tables for slots [0, count), published once filled
+        private void rehash(int capacity, int count) {
+            AtomicLongArray n = new AtomicLongArray(capacity), i = new AtomicLongArray(capacity);
+            for (int s = 0; s < count; s++) {
+                int a = names[s];
+                byte[] p = pages[a >>> PAGE_BITS];
+                int o = a & (PAGE - 1);
+                put(n, hash(p, o + 1, p[o] & 0xff), s);
+                put(i, ids[s], s);
+            }
+            byName = n;
+            byId = i;
+        }
+
+        private static void put(AtomicLongArray t, int key, int slot) {
+            int mask = t.length() - 1, i = mix(key) & mask;
+            while (t.get(i) != 0) i = (i + 1) & mask;
+            t.set(i, (long) key << 32 | (slot + 1));
+        }
+
+        private int slotOf(byte[] b) {
+            AtomicLongArray t = byName;
+            int h = hash(b, 0, b.length), mask = t.length() - 1;
+            for (int i = mix(h) & mask; ; i = (i + 1) & mask) {
+                long v = t.get(i);
+                if (v == 0) return -1;
+                if ((int) (v >>> 32) == h && compare((int) v - 1, b) == 0) return (int) v - 1;
+            }
+        }
+
+        private int slotOf(int id) {
+            AtomicLongArray t = byId;
+            int mask = t.length() - 1;
+            for (int i = mix(id) & mask; ; i = (i + 1) & mask) {
+                long v = t.get(i);
+                if (v == 0) return -1;
+                if ((int) (v >>> 32) == id) return (int) v - 1;
+            }
+        }
+
+        // slots [first, to) are new: into the delta, or for bulk loads sorted and merged into the index
+        void index(int first, int to) {
+            if (to - first <= DELTA_MAX - deltaSize) {
+                for (int s = first; s < to; s++) {
+                    int pos = -bound(delta, deltaSize, s) - 1;
+                    System.arraycopy(delta, pos, delta, pos + 1, deltaSize - pos);
+                    delta[pos] = s;
+                    deltaSize++;
+                }
+                if (deltaSize < DELTA_MAX) return;
+                first = to;
+            }
+            int[] added = new int[deltaSize + to - first];
+            System.arraycopy(delta, 0, added, 0, deltaSize);
+            for (int s = first; s < to; s++) added[deltaSize + s - first] = s;
+            sort(added, new int[added.length], 0, added.length);
+            int[] merged = new int[sorted.length + added.length];
+            int i = 0, j = 0, k = 0;
+            while (i < sorted.length && j < added.length) merged[k++] = compare(sorted[i], added[j]) <= 0 ? sorted[i++] : added[j++];
+            while (i < sorted.length) merged[k++] = sorted[i++];
+            while (j < added.length) merged[k++] = added[j++];
+            sorted = merged;
+            deltaSize = 0;
+        }
+
+        private void sort(int[] a, int[] tmp, int from, int to) {
+            if (to - from < 2) return;
+            int mid = (from + to) >>> 1;
+            sort(a, tmp, from, mid);
+            sort(a, tmp, mid, to);
+            if (compare(a[mid - 1], a[mid]) <= 0) return;
+            System.arraycopy(a, from, tmp, from, to - from);
+            int i = from, j = mid;
+            for (int k = from; k < to; k++) a[k] = j == to || (i < mid && compare(tmp[i], tmp[j]) <= 0) ? tmp[i++] : tmp[j++];
+        }
+
+        // binary search of slot s in the name-ordered arr[0, n): its index, or -(insertion point) - 1
+        private int bound(int[] arr, int n, int s) {
+            int lo = 0, hi = n;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1, c = compare(arr[mid], s);
+                if (c == 0) return mid;
+                if (c < 0) lo = mid + 1; else hi = mid;
+            }
+            return -lo - 1;
+        }
+
+        // first index in the name-ordered arr[0, n) whose name is >= key (> key if strict)
+        private int bound(int[] arr, int n, byte[] key, boolean strict) {
+            int lo = 0, hi = n;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1, c = compare(arr[mid], key);
+                if (c < 0 || (strict && c == 0)) lo = mid + 1; else hi = mid;
+            }
+            return lo;
+        }
+
+        private int compare(int s1, int s2) {
+            byte[][] pg = pages;
+            int a = names[s1], b = names[s2];
+            byte[] p = pg[a >>> PAGE_BITS], q = pg[b >>> PAGE_BITS];
+            int o = a & (PAGE - 1), r = b & (PAGE - 1);
+            return Arrays.compareUnsigned(p, o + 1, o + 1 + (p[o] & 0xff), q, r + 1, r + 1 + (q[r] & 0xff));
+        }
+
+        private int compare(int s, byte[] key) {
+            int a = names[s];
+            byte[] p = pages[a >>> PAGE_BITS];
+            int o = a & (PAGE - 1);
+            return Arrays.compareUnsigned(p, o + 1, o + 1 + (p[o] & 0xff), key, 0, key.length);
+        }
+
+        private static int compare(byte[] a, byte[] b) {
+            return Arrays.compareUnsigned(a, b);
+        }
+
+        private boolean startsWith(int s, byte[] prefix) {
+            int a = names[s];
+            byte[] p = pages[a >>> PAGE_BITS];
+            int o = a & (PAGE - 1), len = p[o] & 0xff;
+            return len >= prefix.length && Arrays.equals(p, o + 1, o + 1 + prefix.length, prefix, 0, prefix.length);
+        }
+
+        String string(int s) {
+            int a = names[s];
+            byte[] p = pages[a >>> PAGE_BITS];
+            int o = a & (PAGE - 1);
+            return new String(p, o + 1, p[o] & 0xff, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int hash(byte[] b, int off, int len) {
+        int h = 0x811c9dc5;
+        for (int i = off; i < off + len; i++) h = (h ^ b[i]) * 0x01000193;
+        return h;
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    @Override
+    public String toString() {
+        Tables t = tables;
+        long idx = 8L * (t.byName.length() + t.byId.length()) + 4L * (t.ids.length + t.names.length);
+        return String.format("users: count=%d names=%dMB index=%dMB", t.size, (t.page + 1L) * PAGE >> 20, (idx + 4L * t.sorted.length) >> 20);
+    }
+}
+
+// ==========================
+// server/MessageJournal.java
+// ==========================
+package server;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+ Write-behind persistence for chat messages. append() only enqueues; one writer thread drains the
+ queue and inserts in batches of up to batchSize rows, or whatever arrived within flushMs.
+ A full queue blocks the sender (backpressure) instead of dropping messages.
+ Messages held for an offline recipient also go to PendingMessages with the same batch. A batch that
+ can't be written is taken out of the HistoryCache again, so history never shows what the store lacks.
+ close() queues CLOSE behind everything appended so far and waits for the writer to get there; the writer
+ is never interrupted, so a batch being written is finished. Appends that come later are written by the
+ caller itself.
+*/
+public class MessageJournal {
+    private static final int MAX_RETRIES = 5;
+    private static final Models.Message CLOSE = new Models.Message(0, null, null, ""); // last thing queued
+
+    private final MessageStore store;
+    private final PendingMessages pending;
+    private final HistoryCache history;
+    private final BlockingQueue<Models.Message> queue;
+    private final int batchSize;
+    private final long flushMs;
+    private final Thread writer;
+    // append() holds the read lock from checking `closed` until its message is queued, close() the write lock
+    private final ReentrantReadWriteLock closing = new ReentrantReadWriteLock();
+    private boolean closed; // guarded by closing
+
+    private final AtomicLong appended = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong lost = new AtomicLong();
+
+    public MessageJournal(MessageStore store, PendingMessages pending, HistoryCache history, int capacity, int batchSize, long flushMs) {
+        this.store = store;
+        this.pending = pending;
+        this.history = history;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.flushMs = flushMs;
+        this.writer = new Thread(this::writeLoop, "message-journal");
+        writer.start();
+    }
+
+    public void append(Models.Message m) {
+        appended.incrementAndGet();
+        closing.readLock().lock();
+        try {
+            if (!closed) {
+                queue.put(m); // a full queue waits for the writer, which keeps draining until CLOSE
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closing.readLock().unlock();
+        }
+        // closed (or interrupted while waiting for room): write it ourselves rather than lose it
+        write(List.of(m));
+    }
+
+    private void writeLoop() {
+        List<Models.Message> batch = new ArrayList<>(batchSize);
+        boolean open = true;
+        while (open) {
+            try {
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushMs);
+                while (batch.size() < batchSize && batch.get(batch.size() - 1) != CLOSE) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    long left = deadline - System.nanoTime();
+                    if (batch.size() >= batchSize || batch.get(batch.size() - 1) == CLOSE || left <= 0) break;
+                    Models.Message m = queue.poll(left, TimeUnit.NANOSECONDS);
+                    if (m == null) break;
+                    batch.add(m);
+                }
+            } catch (InterruptedException e) {
+                // nothing interrupts the writer; write what we have
+            }
+            if (!batch.isEmpty() && batch.get(batch.size() - 1) == CLOSE) {
+                batch.remove(batch.size() - 1);
+                open = false;
+            }
+            if (!batch.isEmpty()) {
+                write(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void write(List<Models.Message> batch) {
+        if (retry(() -> store.saveMessages(batch), batch.size(), "messages")) {
+            written.addAndGet(batch.size());
+            batches.incrementAndGet();
+        } else {
+            lost.addAndGet(batch.size());
+            history.forget(batch);
+        }
+        List<Models.Message> held = PendingMessages.heldIn(batch);
+        if (held.isEmpty()) return;
+        try {
+            retry(() -> pending.save(held), held.size(), "pending deliveries");
+        } finally {
+            pending.released(held);
+        }
+    }
+
+    private interface Write { void run() throws SQLException; }
+
+    // False if the write still failed after MAX_RETRIES attempts. A pending interrupt of the calling thread
+    // is set aside meanwhile: it would fail every attempt at once (pool acquire, backoff sleep).
+    private static boolean retry(Write w, int rows, String what) {
+        boolean interrupted = Thread.interrupted();
+        try {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    w.run();
+                    return true;
+                } catch (SQLException e) {
+                    if (attempt >= MAX_RETRIES) {
+                        System.err.println("Journal: dropping " + rows + " " + what + " after " + attempt + " attempts: " + e.getMessage());
+                        return false;
+                    }
+                    try { Thread.sleep(100L << attempt); } catch (InterruptedException ie) { interrupted = true; }
+                }
+            }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    // Stops accepting into the queue and waits until the writer has written everything queued before.
+    public void close() {
+        boolean interrupted = false;
+        closing.writeLock().lock();
+        try {
+            if (closed) return;
+            closed = true;
+            while (true) {
+                try { queue.put(CLOSE); break; } catch (InterruptedException e) { interrupted = true; }
+            }
+        } finally {
+            closing.writeLock().unlock();
+        }
+        while (writer.isAlive()) {
+            try { writer.join(); } catch (InterruptedException e) { interrupted = true; }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("journal: queued=%d appended=%d written=%d batches=%d lost=%d",
+                queue.size(), appended.get(), written.get(), batches.get(), lost.get());
+    }
+}
+
+// ==========================
+// server/PendingMessages.java
+// ==========================
+package server;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ Inbox for private messages whose recipient was offline. ClientHandler marks such a message with hold();
+ MessageJournal then writes it to pending_messages in the same write-behind batch as the message itself.
+ After LOGIN the user gets the backlog oldest first, a page at a time: PENDING|from|time|content lines, then
+ PENDING_END|<lastId>. The client answers ACK_PENDING|<lastId>, which deletes that page and sends the next
+ one; a bare PENDING_END means nothing is left. A page that was never acknowledged is sent again at the next
+ login, so a reconnecting user costs one indexed range read per page instead of history scans.
+ Clients that use sequence numbers (PROTO|SEQ) get the messages as INCOMING_PRIVATE_SEQ lines instead.
+*/
+public class PendingMessages {
+    // longest a login waits for held messages of that user still queued in the journal
+    private static final long WRITE_WAIT_MS = 2000;
+
+    private final DBHelper db;
+    private final int pageSize;
+    // recipient id -> held messages the journal hasn't written yet
+    private final ConcurrentHashMap<Integer, Integer> unwritten = new ConcurrentHashMap<>();
+    // signalled by the journal writer whenever held messages have been written (a lock rather than a
+    // monitor, so logins waiting for it don't pin virtual threads)
+    private final ReentrantLock writtenLock = new ReentrantLock();
+    private final Condition written = writtenLock.newCondition();
+
+    private final AtomicLong held = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong acked = new AtomicLong();
+
+    interface Row { void accept(String fromUsername, String content, java.sql.Timestamp createdAt, long conv, long seq); }
+
+    public PendingMessages(DBHelper db, int pageSize) {
+        this.db = db;
+        this.pageSize = pageSize;
+    }
+
+    // m is for an offline user; call before journal.append(m)
+    public void hold(Models.Message m) {
+        m.pending = true;
+        unwritten.merge(m.toId, 1, Integer::sum);
+        held.incrementAndGet();
+    }
+
+    // Takes back a hold() whose recipient turned out to be online after all; before journal.append(m).
+    public void unhold(Models.Message m) {
+        m.pending = false;
+        held.decrementAndGet();
+        released(List.of(m));
+    }
+
+    // the held messages of a journal batch (usually none)
+    static List<Models.Message> heldIn(List<Models.Message> batch) {
+        List<Models.Message> res = null;
+        for (Models.Message m: batch) {
+            if (!m.pending) continue;
+            if (res == null) res = new ArrayList<>();
+            res.add(m);
+        }
+        return res == null ? List.of() : res;
+    }
+
+    // journal writer thread
+    void save(List<Models.Message> heldMessages) throws SQLException {
+        db.savePending(heldMessages);
+    }
+
+    // A private message another node forwarded here for a user who has just left (ClusterNode). The
+    // sender's node already stored the message itself, so only the pending row is written, right away.
+    public void holdForwarded(Models.Message m) {
+        hold(m);
+        List<Models.Message> one = List.of(m);
+        try {
+            save(one);
+        } catch (SQLException e) {
+            System.err.println("Pending: can't hold forwarded message for user " + m.toId + ": " + e.getMessage());
+        } finally {
+            released(one);
+        }
+    }
+
+    // journal writer thread, once the messages are written or given up on
+    void released(List<Models.Message> heldMessages) {
+        if (heldMessages.isEmpty()) return;
+        for (Models.Message m: heldMessages) unwritten.computeIfPresent(m.toId, (k, n) -> n == 1 ? null : n - 1);
+        writtenLock.lock();
+        try { written.signalAll(); } finally { writtenLock.unlock(); }
+    }
+
+    // Sends the next page of the user's backlog. Called after LOGIN (the user is already online, so nothing
+    // new is held for them) and after each ACK_PENDING.
+    public void deliver(ClientHandler h, int userId) {
+        awaitWritten(userId);
+        try {
+            long[] count = new long[1];
+            long last = db.streamPending(userId, pageSize, (from, content, ts, conv, seq) -> {
+                // sequenced clients get them like any other message, so they also count towards their ACKs
+                if (h.isSequenced() && seq > 0) h.deliver(conv, seq, from, content);
+                else h.send(Op.PENDING, from, String.valueOf(ts), content);
+                count[0]++;
+            });
+            delivered.addAndGet(count[0]);
+            if (last > 0) h.pendingSent = last;
+            if (last > 0) h.send(Op.PENDING_END, String.valueOf(last)); else h.send(Op.PENDING_END);
+        } catch (SQLException e) {
+            // stays in the table for the next login
+            System.err.println("Pending: delivery to user " + userId + " failed: " + e.getMessage());
+        }
+    }
+
+    // lastId comes from the client: nothing past the last page this session was sent is deleted
+    public void ack(ClientHandler h, int userId, long lastId) {
+        long upTo = Math.min(lastId, h.pendingSent);
+        try {
+            if (upTo > 0) acked.addAndGet(db.deletePending(userId, upTo));
+        } catch (SQLException e) {
+            System.err.println("Pending: ack of user " + userId + " failed: " + e.getMessage());
+            return; // sending the next page now would repeat this one
+        }
+        deliver(h, userId);
+    }
+
+    // a message held just before the user logged in may still sit in the journal queue
+    private void awaitWritten(int userId) {
+        if (!unwritten.containsKey(userId)) return;
+        long left = TimeUnit.MILLISECONDS.toNanos(WRITE_WAIT_MS);
+        writtenLock.lock();
+        try {
+            while (unwritten.containsKey(userId) && left > 0) left = written.awaitNanos(left);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            writtenLock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("pending: held=%d delivered=%d acked=%d unwritten-recipients=%d",
+                held.get(), delivered.get(), acked.get(), unwritten.size());
+    }
+}
+
+// ==========================
+// server/Sequencer.java
+// ==========================
+package server;
+
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ Per-conversation sequence numbers (1, 2, 3, ... within each conversation; keys as in HistoryCache).
+ A conversation's counter continues from the highest seq in the message store the first time it is used.
+ append() numbers a message, pushes it into the HistoryCache ring and hands it to the journal under the
+ counter's lock, so the messages of a conversation reach the store in seq order (the store can look them up
+ by seq for RESUME) and the ring holds them in the order the journal gives them ids (its paging cursor).
+ The lock is a ReentrantLock, not a monitor: append() may wait for the store, for room in the journal queue
+ and for room in a fan-out queue while holding it, and virtual threads must not be pinned meanwhile.
+ Counters idle for IDLE_MS are dropped (their messages are long written) and reloaded when needed.
+ Off in cluster mode, where every node would number the same conversation on its own.
+*/
+public class Sequencer {
+    private static final long IDLE_MS = TimeUnit.MINUTES.toMillis(10);
+
+    private final MessageStore store;
+    private final MessageJournal journal;
+    private final HistoryCache history;
+    private final boolean enabled;
+    private final ConcurrentHashMap<Long, Counter> counters = new ConcurrentHashMap<>();
+
+    private static final class Counter {
+        final ReentrantLock lock = new ReentrantLock();
+        long seq = -1; // -1 until loaded from the store; guarded by lock
+        boolean dropped; // removed from the map by sweep(); guarded by lock
+        volatile long used;
+    }
+
+    public Sequencer(MessageStore store, MessageJournal journal, HistoryCache history, boolean enabled) {
+        this.store = store;
+        this.journal = journal;
+        this.history = history;
+        this.enabled = enabled;
+        if (!enabled) return;
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "sequencer-sweep"); t.setDaemon(true); return t;
+        });
+        timer.scheduleWithFixedDelay(this::sweep, 1, 1, TimeUnit.MINUTES);
+    }
+
+    public boolean enabled() { return enabled; }
+
+    // Gives m the next seq of conversation `key`, adds it to the history cache as sent by `from`, appends it
+    // to the journal and runs `deliver`, still under the conversation's lock so deliveries go out in seq
+    // order. m.seq stays 0 when sequencing is off or the store can't be read; the message is stored either
+    // way. (Off means cluster mode, where the history cache is off too.)
+    public void append(long key, Models.Message m, String from, Runnable deliver) {
+        if (!enabled) { history.add(key, m, from); journal.append(m); deliver.run(); return; }
+        while (true) {
+            Counter c = counters.computeIfAbsent(key, k -> new Counter());
+            c.lock.lock();
+            try {
+                if (c.dropped) continue;
+                c.used = System.currentTimeMillis();
+                try {
+                    if (c.seq < 0) c.seq = store.lastSeq(key);
+                    m.seq = ++c.seq;
+                } catch (SQLException e) {
+                    System.err.println("Sequencer: can't load conversation " + key + ": " + e.getMessage());
+                }
+                history.add(key, m, from);
+                journal.append(m);
+                deliver.run();
+                return;
+            } finally {
+                c.lock.unlock();
+            }
+        }
+    }
+
+    // highest seq handed out in the conversation so far (0 if none)
+    public long last(long key) throws SQLException {
+        while (true) {
+            Counter c = counters.computeIfAbsent(key, k -> new Counter());
+            c.lock.lock();
+            try {
+                if (c.dropped) continue;
+                c.used = System.currentTimeMillis();
+                if (c.seq < 0) c.seq = store.lastSeq(key);
+                return c.seq;
+            } finally {
+                c.lock.unlock();
+            }
+        }
+    }
+
+    private void sweep() {
+        long cutoff = System.currentTimeMillis() - IDLE_MS;
+        for (Map.Entry<Long, Counter> e: counters.entrySet()) {
+            Counter c = e.getValue();
+            if (c.used >= cutoff || !c.lock.tryLock()) continue; // busy: not idle after all
+            try {
+                c.dropped = true;
+                counters.remove(e.getKey(), c);
+            } finally {
+                c.lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return enabled ? "sequencer: conversations=" + counters.size() : "sequencer: off";
+    }
+}
+
+// ==========================
+// server/ConversationAcks.java
+// ==========================
+package server;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ What each user has received: ACK|conv|seq records the highest seq of a conversation a client has all
+ messages up to. Acks are collected in memory and written to conversation_acks every flushMs, one upsert
+ per (user, conversation) however many acks came in for it, so a client acking every burst costs at most
+ one row write per conversation per interval. A bare RESUME reads them back, written or not.
+ ClientHandler clamps acks to the conversation's last seq. Only reset() moves an ack back, for a conversation
+ that numbers from 1 again; it runs under flushLock, so a flush with the old value can't land after it.
+*/
+public class ConversationAcks {
+    private final DBHelper db;
+    private Map<Integer, Map<Long, Long>> dirty = new HashMap<>(); // guarded by this
+    private Map<Integer, Map<Long, Long>> flushing = Map.of(); // being written; guarded by this
+    private final ReentrantLock flushLock = new ReentrantLock(); // flush() and reset() write one at a time
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+
+    public ConversationAcks(DBHelper db, long flushMs) {
+        this.db = db;
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "conversation-acks"); t.setDaemon(true); return t;
+        });
+        timer.scheduleWithFixedDelay(this::flush, flushMs, flushMs, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void ack(int userId, long conv, long seq) {
+        merge(dirty, userId, conv, seq);
+        received.incrementAndGet();
+    }
+
+    private static void merge(Map<Integer, Map<Long, Long>> into, int userId, long conv, long seq) {
+        into.computeIfAbsent(userId, k -> new HashMap<>()).merge(conv, seq, Math::max);
+    }
+
+    // conversation -> highest acknowledged seq
+    public Map<Long, Long> of(int userId) throws SQLException {
+        Map<Long, Long> res = db.getAcks(userId);
+        synchronized (this) {
+            for (Map<Integer, Map<Long, Long>> m: List.of(flushing, dirty)) {
+                Map<Long, Long> u = m.get(userId);
+                if (u != null) u.forEach((k, v) -> res.merge(k, v, Math::max));
+            }
+        }
+        return res;
+    }
+
+    // Sets the user's ack of conv to seq even if a higher one is stored (see ClientHandler.resume).
+    public void reset(int userId, long conv, long seq) throws SQLException {
+        flushLock.lock();
+        try {
+            synchronized (this) {
+                Map<Long, Long> u = dirty.get(userId);
+                if (u != null) u.remove(conv);
+            }
+            db.resetAck(userId, conv, seq);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    void flush() {
+        flushLock.lock();
+        try {
+            write();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private void write() {
+        Map<Integer, Map<Long, Long>> batch;
+        synchronized (this) {
+            if (dirty.isEmpty()) return;
+            batch = flushing = dirty;
+            dirty = new HashMap<>();
+        }
+        try {
+            written.addAndGet(db.saveAcks(batch));
+        } catch (SQLException e) {
+            System.err.println("Acks: write failed, retrying next time: " + e.getMessage());
+            synchronized (this) { batch.forEach((u, m) -> m.forEach((k, v) -> merge(dirty, u, k, v))); }
+        } finally {
+            synchronized (this) { flushing = Map.of(); }
+        }
+    }
+
+    public void close() { flush(); }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("acks: received=%d written=%d unwritten-users=%d", received.get(), written.get(), dirty.size());
+    }
+}
+
+// ==========================
+// server/MessageStore.java
+// ==========================
+package server;
+
+import java.sql.SQLException;
+import java.util.List;
+
+// Where chat messages are persisted and history is read from: MySQL (JdbcMessageStore, default) or a
+// local append-only log (LogMessageStore, -Dchat.store=log). Users, groups and logins always use DBHelper.
+public interface MessageStore {
+    // Receives history rows newest first.
+    interface HistoryRow {
+        void accept(long id, String fromUsername, String content, java.sql.Timestamp createdAt);
+    }
+
+    // Stores the batch in order and sets each message's id. Called by MessageJournal's writer thread only.
+    void saveMessages(List<Models.Message> batch) throws SQLException;
+
+    // Up to `limit` messages with id < beforeId, newest first. Returns the cursor for the next older page, 0 if none.
+    long streamPrivateHistory(int userA, int userB, long beforeId, int limit, HistoryRow out) throws SQLException;
+
+    long streamGroupHistory(int groupId, long beforeId, int limit, HistoryRow out) throws SQLException;
+
+    // Highest seq stored in a conversation (key as in HistoryCache), 0 if none.
+    long lastSeq(long key) throws SQLException;
+
+    // Up to `limit` messages with seq > afterSeq, oldest first; the row's id is the seq. Returns the last seq, 0 if none.
+    long streamSince(long key, long afterSeq, int limit, HistoryRow out) throws SQLException;
+
+    default void close() {}
+}
+
+// ==========================
+// server/JdbcMessageStore.java
+// ==========================
+package server;
+
+import java.sql.SQLException;
+import java.util.List;
+
+// The messages table through DBHelper (with the archive behind it, if one is configured).
+public class JdbcMessageStore implements MessageStore {
+    private final DBHelper db;
+
+    public JdbcMessageStore(DBHelper db) { this.db = db; }
+
+    @Override
+    public void saveMessages(List<Models.Message> batch) throws SQLException { db.saveMessages(batch); }
+
+    @Override
+    public long streamPrivateHistory(int userA, int userB, long beforeId, int limit, HistoryRow out) throws SQLException {
+        return db.streamPrivateHistory(userA, userB, beforeId, limit, out);
+    }
+
+    @Override
+    public long streamGroupHistory(int groupId, long beforeId, int limit, HistoryRow out) throws SQLException {
+        return db.streamGroupHistory(groupId, beforeId, limit, out);
+    }
+
+    @Override
+    public long lastSeq(long key) throws SQLException { return db.lastSeq(key); }
+
+    @Override
+    public long streamSince(long key, long afterSeq, int limit, HistoryRow out) throws SQLException {
+        return db.streamSince(key, afterSeq, limit, out);
+    }
+
+    @Override
+    public String toString() { return "message store: jdbc"; }
+}
+
+// ==========================
+// server/LogMessageStore.java
+// ==========================
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
+
+/*
+ Messages in an append-only log of memory-mapped segment files (-Dchat.log.dir), no MySQL involved.
+ Segment <seq>.log is preallocated to -Dchat.log.segmentMB and filled with records:
+   int32 body length, int32 CRC32C of body,
+   body: int64 id, int64 conversation key (as in HistoryCache), int64 created_at millis, int64 seq,
+         int32 sender id, uint16 sender name length + UTF-8 name, UTF-8 content
+ The directory's FORMAT file holds the record version; a log without it (written before seq was
+ added) is refused rather than misread.
+ A zero length marks the end of a segment. On startup every segment is scanned, records are checked
+ against their CRC (a torn record at the end of the last segment is cut off) and the in-memory index
+ is rebuilt: per conversation, the addresses (segment << 32 | offset) of its records in id order,
+ 8 bytes per message. History is a binary search in that list plus reads from the mapped segments.
+ Records are never updated or deleted, so the only space to reclaim is history past -Dchat.log.retentionDays
+ (0 = keep everything): compact() drops whole segments whose newest message is that old and trims the index.
+ A segment is not rewritten, so it outlives its oldest messages by up to its own time span. Readers hold a
+ reference on the segments they read, and a dropped segment is unmapped and its file deleted when the last
+ one is released. Segments are mapped on their own thread, so an interrupt of the writing thread can't close
+ the channel halfway through a roll (ClosedByInterruptException).
+ Writes reach the page cache immediately; -Dchat.log.fsync=true forces them to disk after every journal batch.
+*/
+public class LogMessageStore implements MessageStore {
+    private static final int HEADER = 8;  // length + crc
+    private static final int FIXED = 38;  // body bytes before the sender name
+    private static final String FORMAT = "2";
+    // MappedByteBuffer has no unmap; sun.misc.Unsafe.invokeCleaner does it (null if unavailable: the GC does)
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+    static {
+        Object unsafe = null;
+        Method cleaner = null;
+        try {
+            Class<?> c = Class.forName("sun.misc.Unsafe");
+            Field f = c.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            unsafe = f.get(null);
+            cleaner = c.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            System.err.println("Message log: can't unmap dropped segments (" + e + "), leaving them to the GC");
+            unsafe = null;
+            cleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = cleaner;
+    }
+
+    private final File dir;
+    private final int segmentBytes;
+    private final long retentionMs;
+    private final boolean fsync;
+
+    private final Map<Integer, Segment> segments = new ConcurrentHashMap<>();
+    private final ExecutorService mapper = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "message-log-map"); t.setDaemon(true); return t;
+    });
+    private final Map<Long, Conversation> conversations = new ConcurrentHashMap<>();
+    private volatile int firstSeq = 0; // segments below this have been compacted away
+
+    // writer state, guarded by this
+    private Segment active;
+    private long nextId = 1;
+    private byte[] scratch = new byte[4096];
+    private final CRC32C crc = new CRC32C();
+
+    private static final class Segment {
+        final int seq;
+        final File file;
+        final MappedByteBuffer buf;
+        volatile int end; // write position
+        volatile long newest; // created_at of the last record
+        // 1 for the store until compact() drops the segment, plus 1 per reader
+        private final AtomicInteger refs = new AtomicInteger(1);
+
+        Segment(int seq, File file, MappedByteBuffer buf) { this.seq = seq; this.file = file; this.buf = buf; }
+
+        boolean acquire() {
+            while (true) {
+                int r = refs.get();
+                if (r == 0) return false;
+                if (refs.compareAndSet(r, r + 1)) return true;
+            }
+        }
+
+        // the last release unmaps the segment and deletes its file
+        void release() {
+            if (refs.decrementAndGet() != 0) return;
+            unmap(buf);
+            if (!file.delete()) System.err.println("Message log: couldn't delete " + file);
+        }
+    }
+
+    private static void unmap(MappedByteBuffer buf) {
+        if (INVOKE_CLEANER == null) return;
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buf);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("Message log: unmap failed: " + e);
+        }
+    }
+
+    private static final class Conversation {
+        long[] addrs = new long[8];
+        int start, size; // live entries are addrs[start, size)
+
+        synchronized void add(long addr) {
+            if (size == addrs.length) {
+                if (start > addrs.length / 2) { // reuse the space compaction freed at the front
+                    System.arraycopy(addrs, start, addrs, 0, size - start);
+                    size -= start; start = 0;
+                } else {
+                    addrs = Arrays.copyOf(addrs, addrs.length * 2);
+                }
+            }
+            addrs[size++] = addr;
+        }
+    }
+
+    public LogMessageStore(File dir, int segmentBytes, int retentionDays, boolean fsync) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.retentionMs = TimeUnit.DAYS.toMillis(retentionDays);
+        this.fsync = fsync;
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Can't create " + dir);
+        checkFormat();
+        recover();
+        if (retentionMs > 0) {
+            ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "message-log-compaction"); t.setDaemon(true); return t;
+            });
+            timer.scheduleWithFixedDelay(this::compact, 1, 60, TimeUnit.MINUTES);
+        }
+    }
+
+    private static String fileName(int seq) { return String.format("%010d.log", seq); }
+
+    private void checkFormat() throws IOException {
+        java.nio.file.Path f = new File(dir, "FORMAT").toPath();
+        String[] logs = dir.list((d, n) -> n.matches("\\d{10}\\.log"));
+        if (java.nio.file.Files.exists(f)) {
+            String v = java.nio.file.Files.readString(f).trim();
+            if (!v.equals(FORMAT)) throw new IOException(dir + " has record format " + v + ", this server writes " + FORMAT);
+        } else if (logs != null && logs.length > 0) {
+            throw new IOException(dir + " was written by an older server (record format 1); move it away to start a new log");
+        } else {
+            java.nio.file.Files.writeString(f, FORMAT + "\n");
+        }
+    }
+
+    // maps the segment on the mapper thread and waits for it, whatever interrupts this thread meanwhile
+    private Segment open(int seq) throws IOException {
+        Future<Segment> f = mapper.submit(() -> map(seq));
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return f.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                }
+            }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    private Segment map(int seq) throws IOException {
+        File f = new File(dir, fileName(seq));
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw"); FileChannel ch = raf.getChannel()) {
+            if (raf.length() < segmentBytes) raf.setLength(segmentBytes);
+            // the mapping stays valid after the channel is closed
+            Segment s = new Segment(seq, f, ch.map(FileChannel.MapMode.READ_WRITE, 0, raf.length()));
+            segments.put(seq, s);
+            return s;
+        }
+    }
+
+    // the segment with a reference taken (release() it when done), or null if it has been dropped
+    private Segment acquire(int seq) {
+        Segment s = segments.get(seq);
+        return s != null && s.acquire() ? s : null;
+    }
+
+    private synchronized void recover() throws IOException {
+        File[] files = dir.listFiles((d, n) -> n.matches("\\d{10}\\.log"));
+        int[] seqs = new int[files == null ? 0 : files.length];
+        for (int i = 0; i < seqs.length; i++) seqs[i] = Integer.parseInt(files[i].getName().substring(0, 10));
+        Arrays.sort(seqs);
+        long records = 0;
+        for (int seq: seqs) {
+            Segment s = open(seq);
+            MappedByteBuffer b = s.buf;
+            int off = 0;
+            while (off + HEADER <= b.capacity()) {
+                int len = b.getInt(off);
+                if (!fits(b, off, len)) break;
+                if (!crcMatches(b, off, len)) {
+                    // a damaged record followed by a good one is skipped; otherwise it is the torn end of the log
+                    int next = off + HEADER + len;
+                    if (next + HEADER > b.capacity() || !fits(b, next, b.getInt(next)) || !crcMatches(b, next, b.getInt(next))) break;
+                    System.err.println("Message log: skipped damaged record in " + s.file + " at offset " + off);
+                    off = next;
+                    continue;
+                }
+                long id = b.getLong(off + HEADER);
+                conversation(b.getLong(off + HEADER + 8)).add(address(seq, off));
+                s.newest = b.getLong(off + HEADER + 16);
+                nextId = Math.max(nextId, id + 1);
+                off += HEADER + len;
+                records++;
+            }
+            if (off + HEADER <= b.capacity() && b.getInt(off) != 0) {
+                // torn write: clear the rest so the next records land on a clean tail
+                System.err.println("Message log: cut " + s.file + " at offset " + off);
+                for (int i = off; i < b.capacity(); i++) b.put(i, (byte) 0);
+            }
+            s.end = off;
+            active = s;
+        }
+        if (seqs.length > 0) firstSeq = seqs[0];
+        if (active == null) active = open(0);
+        System.out.println("Message log: " + records + " messages in " + seqs.length + " segments, next id " + nextId);
+    }
+
+    private static boolean fits(MappedByteBuffer b, int off, int len) {
+        return len >= FIXED && off + HEADER + len <= b.capacity();
+    }
+
+    private boolean crcMatches(MappedByteBuffer b, int off, int len) {
+        crc.reset();
+        crc.update(b.slice(off + HEADER, len));
+        return (int) crc.getValue() == b.getInt(off + 4);
+    }
+
+    private static long address(int seq, int off) { return ((long) seq << 32) | (off & 0xffffffffL); }
+
+    private Conversation conversation(long key) {
+        return conversations.computeIfAbsent(key, k -> new Conversation());
+    }
+
+    @Override
+    public synchronized void saveMessages(List<Models.Message> batch) throws SQLException {
+        try {
+            for (Models.Message m: batch) append(m);
+            if (fsync) active.buf.force();
+        } catch (IOException e) {
+            throw new SQLException("Message log write failed: " + e.getMessage(), e);
+        }
+    }
+
+    private void append(Models.Message m) throws IOException {
+        if (m.id != 0) return; // written by an earlier attempt at this batch (MessageJournal retries whole batches)
+        long key = m.groupId != null ? HistoryCache.groupKey(m.groupId)
+                : m.toId != null ? HistoryCache.privateKey(m.fromId, m.toId) : 0;
+        if (key == 0) return; // no recipient: nobody could ask for it, as with the SQL store
+        byte[] name = (m.fromUsername == null ? "" : m.fromUsername).getBytes(StandardCharsets.UTF_8);
+        byte[] text = m.content.getBytes(StandardCharsets.UTF_8);
+        int len = FIXED + name.length + text.length;
+        if (HEADER + len > segmentBytes) throw new IOException("Message larger than a segment");
+        if (scratch.length < len) scratch = new byte[Math.max(len, scratch.length * 2)];
+        long id = nextId;
+        java.nio.ByteBuffer body = java.nio.ByteBuffer.wrap(scratch, 0, len);
+        body.putLong(id).putLong(key).putLong(m.createdAt.getTime()).putLong(m.seq).putInt(m.fromId)
+                .putShort((short) name.length).put(name).put(text);
+        crc.reset();
+        crc.update(scratch, 0, len);
+
+        Segment s = active;
+        if (s.end + HEADER + len > s.buf.capacity()) {
+            if (fsync) s.buf.force();
+            s = active = open(s.seq + 1);
+        }
+        int off = s.end;
+        s.buf.put(off + HEADER, scratch, 0, len);
+        s.buf.putInt(off + 4, (int) crc.getValue());
+        s.buf.putInt(off, len);
+        s.end = off + HEADER + len;
+        s.newest = m.createdAt.getTime();
+        conversation(key).add(address(s.seq, off));
+        nextId = id + 1;
+        m.id = id;
+    }
+
+    @Override
+    public long streamPrivateHistory(int userA, int userB, long beforeId, int limit, HistoryRow out) throws SQLException {
+        return stream(HistoryCache.privateKey(userA, userB), beforeId, limit, out);
+    }
+
+    @Override
+    public long streamGroupHistory(int groupId, long beforeId, int limit, HistoryRow out) throws SQLException {
+        return stream(HistoryCache.groupKey(groupId), beforeId, limit, out);
+    }
+
+    private long stream(long key, long beforeId, int limit, HistoryRow out) {
+        Conversation c = conversations.get(key);
+        if (c == null) return 0;
+        long[] page;
+        boolean older;
+        synchronized (c) {
+            // first entry with id >= beforeId; ids grow with the position
+            int lo = c.start, hi = c.size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (idAt(c.addrs[mid]) < beforeId) lo = mid + 1; else hi = mid;
+            }
+            int from = Math.max(c.start, lo - limit);
+            page = Arrays.copyOfRange(c.addrs, from, lo);
+            older = from > c.start;
+        }
+        long last = 0;
+        Segment s = null;
+        try {
+            for (int i = page.length - 1; i >= 0; i--) {
+                int seq = (int) (page[i] >>> 32);
+                if (s == null || s.seq != seq) {
+                    if (s != null) s.release();
+                    s = acquire(seq);
+                    if (s == null) { older = false; break; } // compacted while we were reading
+                }
+                MappedByteBuffer b = s.buf;
+                int off = (int) page[i] + HEADER;
+                int len = b.getInt(off - HEADER);
+                last = b.getLong(off);
+                emit(b, off, len, last, out);
+            }
+        } finally {
+            if (s != null) s.release();
+        }
+        return older ? last : 0;
+    }
+
+    // record body at b[off] of length len, handed out with the given id (message id or seq)
+    private static void emit(MappedByteBuffer b, int off, int len, long id, HistoryRow out) {
+        int nameLen = b.getShort(off + 36) & 0xffff;
+        byte[] name = new byte[nameLen], text = new byte[len - FIXED - nameLen];
+        b.get(off + FIXED, name);
+        b.get(off + FIXED + nameLen, text);
+        out.accept(id, new String(name, StandardCharsets.UTF_8), new String(text, StandardCharsets.UTF_8), new Timestamp(b.getLong(off + 16)));
+    }
+
+    @Override
+    public long lastSeq(long key) {
+        Conversation c = conversations.get(key);
+        if (c == null) return 0;
+        long addr;
+        synchronized (c) {
+            if (c.size == c.start) return 0;
+            addr = c.addrs[c.size - 1];
+        }
+        return seqAt(addr);
+    }
+
+    @Override
+    public long streamSince(long key, long afterSeq, int limit, HistoryRow out) {
+        Conversation c = conversations.get(key);
+        if (c == null) return 0;
+        long[] page;
+        synchronized (c) {
+            // a conversation's records are appended in seq order (see Sequencer)
+            int lo = c.start, hi = c.size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (seqAt(c.addrs[mid]) <= afterSeq) lo = mid + 1; else hi = mid;
+            }
+            page = Arrays.copyOfRange(c.addrs, lo, Math.min(c.size, lo + limit));
+        }
+        long last = 0;
+        Segment s = null;
+        try {
+            for (long addr: page) {
+                int seq = (int) (addr >>> 32);
+                if (s == null || s.seq != seq) {
+                    if (s != null) s.release();
+                    s = acquire(seq);
+                    if (s == null) continue; // compacted while we were reading
+                }
+                int off = (int) addr + HEADER;
+                last = s.buf.getLong(off + 24);
+                emit(s.buf, off, s.buf.getInt(off - HEADER), last, out);
+            }
+        } finally {
+            if (s != null) s.release();
+        }
+        return last;
+    }
+
+    private long seqAt(long addr) {
+        Segment s = acquire((int) (addr >>> 32));
+        if (s == null) return 0;
+        try { return s.buf.getLong((int) addr + HEADER + 24); } finally { s.release(); }
+    }
+
+    private long idAt(long addr) {
+        Segment s = acquire((int) (addr >>> 32));
+        if (s == null) return 0; // compacted records sort before everything
+        try { return s.buf.getLong((int) addr + HEADER); } finally { s.release(); }
+    }
+
+    // Drops segments whose newest message is past retention (never the one being written) and trims the index.
+    void compact() {
+        long cutoff = System.currentTimeMillis() - retentionMs;
+        int first = firstSeq;
+        int activeSeq;
+        synchronized (this) { activeSeq = active.seq; }
+        while (first < activeSeq) {
+            Segment s = segments.get(first);
+            if (s != null && s.newest >= cutoff) break;
+            if (s != null) {
+                segments.remove(first);
+                s.release(); // unmapped and deleted now, or by the last reader still on it
+            }
+            first++;
+        }
+        if (first == firstSeq) return;
+        firstSeq = first;
+        long minAddr = address(first, 0);
+        synchronized (this) { // no appends meanwhile, so an emptied conversation can't get a new record while being removed
+            conversations.entrySet().removeIf(e -> {
+                Conversation c = e.getValue();
+                synchronized (c) {
+                    while (c.start < c.size && c.addrs[c.start] < minAddr) c.start++;
+                    return c.start == c.size;
+                }
+            });
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        for (Integer seq: segments.keySet()) {
+            Segment s = acquire(seq);
+            if (s == null) continue;
+            try { s.buf.force(); } finally { s.release(); }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("message store: log segments=%d active=%s at %d next-id=%d conversations=%d",
+                segments.size(), active.file.getName(), active.end, nextId, conversations.size());
+    }
+}
+
+// ==========================
+// server/MessagePartitions.java
+// ==========================
+package server;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ Housekeeping for the monthly RANGE partitions of messages (see the schema in the README).
+ Keeps partitions ready for the next -Dchat.partitions.ahead months by splitting the empty pmax
+ partition, and moves partitions older than -Dchat.partitions.hotMonths into ArchiveStore segment
+ files before dropping them, so the live table only holds recent months. Partition bounds are
+ month starts in UTC. Runs at startup and then every hour on its own daemon thread.
+*/
+public class MessagePartitions {
+    private final DBHelper db;
+    private final ArchiveStore archive;
+    private final int ahead;
+    private final int hotMonths;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "message-partitions"); t.setDaemon(true); return t;
+    });
+
+    public MessagePartitions(DBHelper db, ArchiveStore archive, int ahead, int hotMonths) {
+        this.db = db;
+        this.archive = archive;
+        this.ahead = ahead;
+        this.hotMonths = hotMonths;
+    }
+
+    public void start() {
+        timer.scheduleWithFixedDelay(this::maintain, 0, 1, TimeUnit.HOURS);
+    }
+
+    static String name(YearMonth m) {
+        return String.format("p%04d%02d", m.getYear(), m.getMonthValue());
+    }
+
+    static YearMonth month(String partition) {
+        return YearMonth.of(Integer.parseInt(partition.substring(1, 5)), Integer.parseInt(partition.substring(5, 7)));
+    }
+
+    private static boolean isMonth(String partition) {
+        return partition.matches("p\\d{6}");
+    }
+
+    void maintain() {
+        try {
+            List<String> parts = db.getMessagePartitions();
+            if (!parts.contains("pmax")) {
+                System.err.println("Partitions: messages has no pmax partition, see the README schema; skipping");
+                return;
+            }
+            YearMonth now = YearMonth.now(ZoneOffset.UTC);
+            YearMonth last = null;
+            for (String p: parts) if (isMonth(p)) last = month(p);
+            YearMonth m = last == null ? now : last.plusMonths(1);
+            for (; !m.isAfter(now.plusMonths(ahead)); m = m.plusMonths(1)) {
+                long end = m.plusMonths(1).atDay(1).atStartOfDay().toEpochSecond(ZoneOffset.UTC);
+                db.addMessagePartition(name(m), end);
+                System.out.println("Partitions: added " + name(m));
+            }
+            YearMonth oldestHot = now.minusMonths(hotMonths);
+            for (String p: parts) {
+                if (!isMonth(p) || !month(p).isBefore(oldestHot)) continue;
+                // a crash after the segment was renamed into place leaves the partition behind; it is already archived
+                if (!archive.has(p)) archive.write(p, db);
+                db.dropMessagePartition(p);
+                System.out.println("Partitions: archived and dropped " + p);
+            }
+        } catch (SQLException | IOException | RuntimeException e) {
+            System.err.println("Partitions: maintenance failed: " + e.getMessage());
+        }
+    }
+}
+
+// ==========================
+// server/ArchiveStore.java
+// ==========================
+package server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ Archived message partitions, one segment per month in -Dchat.archive.dir:
+   pYYYYMM.seg  one gzip member per conversation, records in id order
+                (int64 id, int64 created_at millis, UTF sender, int32 length + UTF-8 content)
+   pYYYYMM.idx  int32 count, then per conversation: int64 key, int64 offset, int32 length,
+                int32 records, int64 min id, int64 max id (sorted by key)
+ Keys are the ones HistoryCache uses (conversation key, or -groupId). A history read decompresses
+ only that conversation's block. The .idx file is renamed into place last, so a segment without one
+ is an unfinished write and is ignored.
+*/
+public class ArchiveStore {
+    private final Path dir;
+    private final List<Segment> segments = new CopyOnWriteArrayList<>(); // newest first
+
+    private static final class Segment {
+        final String name;
+        final Path data;
+        final long[] keys, offsets, minIds;
+        final int[] lengths, counts;
+
+        Segment(String name, Path data, int n) {
+            this.name = name; this.data = data;
+            keys = new long[n]; offsets = new long[n]; minIds = new long[n];
+            lengths = new int[n]; counts = new int[n];
+        }
+    }
+
+    public ArchiveStore(Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+        List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "p*.idx")) {
+            for (Path p: ds) { String f = p.getFileName().toString(); names.add(f.substring(0, f.length() - 4)); }
+        }
+        names.sort(null);
+        for (int i = names.size() - 1; i >= 0; i--) segments.add(load(names.get(i)));
+    }
+
+    public boolean has(String partition) {
+        for (Segment s: segments) if (s.name.equals(partition)) return true;
+        return false;
+    }
+
+    private Segment load(String name) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(dir.resolve(name + ".idx"))))) {
+            int n = in.readInt();
+            Segment s = new Segment(name, dir.resolve(name + ".seg"), n);
+            for (int i = 0; i < n; i++) {
+                s.keys[i] = in.readLong(); s.offsets[i] = in.readLong(); s.lengths[i] = in.readInt();
+                s.counts[i] = in.readInt(); s.minIds[i] = in.readLong(); in.readLong(); // max id, kept for tooling
+            }
+            return s;
+        }
+    }
+
+    // Copies one partition into a new segment (rows come from DBHelper sorted by key, id).
+    public void write(String partition, DBHelper db) throws IOException, SQLException {
+        Path seg = dir.resolve(partition + ".seg"), idx = dir.resolve(partition + ".idx");
+        Path segTmp = dir.resolve(partition + ".seg.tmp"), idxTmp = dir.resolve(partition + ".idx.tmp");
+        try (FileOutputStream file = new FileOutputStream(segTmp.toFile())) {
+            BlockWriter w = new BlockWriter(file);
+            try {
+                db.streamMessagePartition(partition, w);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            w.finishBlock();
+            w.out.flush();
+            file.getChannel().force(true);
+            try (FileOutputStream f = new FileOutputStream(idxTmp.toFile())) {
+                DataOutputStream d = new DataOutputStream(new BufferedOutputStream(f));
+                d.writeInt(w.index.size());
+                for (long[] e: w.index) {
+                    d.writeLong(e[0]); d.writeLong(e[1]); d.writeInt((int) e[2]); d.writeInt((int) e[3]); d.writeLong(e[4]); d.writeLong(e[5]);
+                }
+                d.flush();
+                f.getChannel().force(true);
+            }
+        }
+        Files.move(segTmp, seg, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(idxTmp, idx, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Segment s = load(partition);
+        int pos = 0;
+        while (pos < segments.size() && segments.get(pos).name.compareTo(partition) > 0) pos++;
+        segments.add(pos, s);
+    }
+
+    // Receives a partition's rows ordered by (key, id) and writes one gzip member per key.
+    static final class BlockWriter implements DBHelper.ArchiveRow {
+        final Counting out;
+        final List<long[]> index = new ArrayList<>(); // key, offset, length, count, min id, max id
+        private DataOutputStream block;
+        private long[] current;
+
+        BlockWriter(OutputStream file) { this.out = new Counting(new BufferedOutputStream(file, 1 << 16)); }
+
+        @Override
+        public void accept(long key, long id, String from, String content, Timestamp createdAt) {
+            try {
+                if (current == null || current[0] != key) {
+                    finishBlock();
+                    current = new long[] { key, out.count, 0, 0, id, id };
+                    block = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(out), 8192));
+                }
+                byte[] text = content.getBytes(StandardCharsets.UTF_8);
+                block.writeLong(id);
+                block.writeLong(createdAt.getTime());
+                block.writeUTF(from);
+                block.writeInt(text.length);
+                block.write(text);
+                current[3]++;
+                current[5] = id;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void finishBlock() throws IOException {
+            if (current == null) return;
+            block.close(); // ends the gzip member; Counting ignores close
+            current[2] = out.count - current[1];
+            index.add(current);
+            current = null;
+        }
+    }
+
+    // counts bytes written and keeps the file open when a gzip member is closed
+    private static final class Counting extends FilterOutputStream {
+        long count;
+
+        Counting(OutputStream out) { super(out); }
+
+        @Override
+        public void write(int b) throws IOException { out.write(b); count++; }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException { out.write(b, off, len); count += len; }
+
+        @Override
+        public void close() {}
+    }
+
+    // Up to `limit` archived messages of `key` with id < beforeId, newest first. Returns how many were delivered.
+    public int read(long key, long beforeId, int limit, MessageStore.HistoryRow out) throws IOException {
+        int delivered = 0;
+        for (Segment s: segments) {
+            if (delivered == limit) break;
+            int i = Arrays.binarySearch(s.keys, key);
+            if (i < 0 || s.minIds[i] >= beforeId) continue;
+            // keep the newest `need` records below the cursor while reading the block oldest to newest
+            int need = limit - delivered;
+            long[] ids = new long[need], times = new long[need];
+            String[] froms = new String[need], texts = new String[need];
+            int n = 0, next = 0;
+            try (FileInputStream f = new FileInputStream(s.data.toFile())) {
+                f.getChannel().position(s.offsets[i]);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(
+                        new GZIPInputStream(new BufferedInputStream(new Bounded(f, s.lengths[i]), 8192)), 8192));
+                for (int r = 0; r < s.counts[i]; r++) {
+                    long id = in.readLong(), ts = in.readLong();
+                    String from = in.readUTF();
+                    byte[] text = new byte[in.readInt()];
+                    in.readFully(text);
+                    if (id >= beforeId) break;
+                    ids[next] = id; times[next] = ts; froms[next] = from; texts[next] = new String(text, StandardCharsets.UTF_8);
+                    next = (next + 1) % need;
+                    if (n < need) n++;
+                }
+            }
+            for (int k = 1; k <= n; k++) {
+                int j = Math.floorMod(next - k, need);
+                out.accept(ids[j], froms[j], texts[j], new Timestamp(times[j]));
+                beforeId = ids[j];
+            }
+            delivered += n;
+        }
+        return delivered;
+    }
+
+    // the first `remaining` bytes of a stream
+    private static final class Bounded extends FilterInputStream {
+        private long remaining;
+
+        Bounded(InputStream in, long length) { super(in); this.remaining = length; }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) return -1;
+            int b = in.read();
+            if (b >= 0) remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) return -1;
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) remaining -= n;
+            return n;
+        }
+    }
+}
+
+// ==========================
+// server/IntSet.java
+// ==========================
+package server;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+// Immutable set of ints kept as a sorted array: no boxing, binary-search lookups, safe to share
+// between threads. Updates return a new set, which suits rarely-changing group memberships.
+public final class IntSet {
+    public static final IntSet EMPTY = new IntSet(new int[0]);
+
+    private final int[] values;
+
+    private IntSet(int[] sortedDistinct) { this.values = sortedDistinct; }
+
+    public static IntSet of(Collection<Integer> ids) {
+        int[] v = new int[ids.size()];
+        int n = 0;
+        for (Integer id: ids) v[n++] = id;
+        Arrays.sort(v);
+        int w = 0;
+        for (int i = 0; i < n; i++) if (w == 0 || v[w - 1] != v[i]) v[w++] = v[i];
+        return new IntSet(w == n ? v : Arrays.copyOf(v, w));
+    }
+
+    public boolean contains(int x) { return Arrays.binarySearch(values, x) >= 0; }
+
+    public int size() { return values.length; }
+
+    public int get(int i) { return values[i]; }
+
+    public IntSet with(int x) {
+        int pos = Arrays.binarySearch(values, x);
+        if (pos >= 0) return this;
+        pos = -pos - 1;
+        int[] v = new int[values.length + 1];
+        System.arraycopy(values, 0, v, 0, pos);
+        v[pos] = x;
+        System.arraycopy(values, pos, v, pos + 1, values.length - pos);
+        return new IntSet(v);
+    }
+}
+
+// ==========================
+// server/GroupCache.java
+// ==========================
+package server;
+
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ Group membership cached in both directions: group id -> member ids and user id -> group ids.
+ Loaded lazily from DBHelper and kept current by memberAdded(), which ChatServer calls after
+ createGroup / addUserToGroup. A load that raced with an update is dropped and re-read next time.
+*/
+public class GroupCache {
+    private final DBHelper db;
+    private final ConcurrentHashMap<Integer, IntSet> members = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, IntSet> groupsOfUser = new ConcurrentHashMap<>();
+    private final AtomicLong updates = new AtomicLong();
+
+    public GroupCache(DBHelper db) { this.db = db; }
+
+    public IntSet members(int groupId) throws SQLException {
+        IntSet s = members.get(groupId);
+        if (s != null) return s;
+        long v = updates.get();
+        s = IntSet.of(db.getGroupMembers(groupId));
+        IntSet prev = members.putIfAbsent(groupId, s);
+        if (prev != null) return prev;
+        if (updates.get() != v) members.remove(groupId, s);
+        return s;
+    }
+
+    public IntSet groupsOf(int userId) throws SQLException {
+        IntSet s = groupsOfUser.get(userId);
+        if (s != null) return s;
+        long v = updates.get();
+        s = IntSet.of(db.getUserGroups(userId));
+        IntSet prev = groupsOfUser.putIfAbsent(userId, s);
+        if (prev != null) return prev;
+        if (updates.get() != v) groupsOfUser.remove(userId, s);
+        return s;
+    }
+
+    public void memberAdded(int groupId, int userId) {
+        updates.incrementAndGet();
+        members.computeIfPresent(groupId, (k, s) -> s.with(userId));
+        groupsOfUser.computeIfPresent(userId, (k, s) -> s.with(groupId));
+    }
+
+    // drop the reverse entry of a user who went offline; it is reloaded at next login
+    public void forgetUser(int userId) { groupsOfUser.remove(userId); }
+}
+
+// ==========================
+// server/SessionRegistry.java
+// ==========================
+package server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ The logged-in sessions, indexed for the message path by user name, user id and group (online members
+ only, kept current on login/logout/join so fan-out never hits the DB). All of it is concurrent maps:
+ logins, logouts and lookups don't queue behind each other, and broadcasts walk a live view (weakly
+ consistent: a session added or removed meanwhile may or may not be seen) without copying it or holding
+ any lock while they write. A user logged in twice maps to the newest session; when that one goes, to the
+ newest one left. Logins and logouts of the same user update the maps inside byUser.compute for that user,
+ so they can't interleave.
+*/
+public class SessionRegistry {
+    private final Set<ClientHandler> sessions = ConcurrentHashMap.newKeySet();
+    private final ConcurrentHashMap<String, ClientHandler> byName = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, ClientHandler> byId = new ConcurrentHashMap<>();
+    // all sessions of a user, oldest first; only touched inside byUser.compute
+    private final ConcurrentHashMap<Integer, List<ClientHandler>> byUser = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Set<ClientHandler>> byGroup = new ConcurrentHashMap<>();
+
+    // after LOGIN; gids = the user's groups
+    public void add(ClientHandler ch, IntSet gids) {
+        sessions.add(ch);
+        byUser.compute(ch.getUserId(), (id, list) -> {
+            if (list == null) list = new ArrayList<>(1);
+            list.add(ch);
+            byName.put(ch.getUsername(), ch);
+            byId.put(id, ch);
+            return list;
+        });
+        for (int i = 0; i < gids.size(); i++) joined(gids.get(i), ch);
+    }
+
+    // gids = the user's groups, or null to look through all of them. Returns true if the user has no
+    // other session left.
+    public boolean remove(ClientHandler ch, IntSet gids) {
+        if (!sessions.remove(ch)) return false;
+        boolean[] last = new boolean[1];
+        byUser.computeIfPresent(ch.getUserId(), (id, list) -> {
+            list.remove(ch);
+            if (list.isEmpty()) {
+                byName.remove(ch.getUsername(), ch);
+                byId.remove(id, ch);
+                last[0] = true;
+                return null;
+            }
+            ClientHandler newest = list.get(list.size() - 1);
+            byName.replace(ch.getUsername(), ch, newest);
+            byId.replace(id, ch, newest);
+            return list;
+        });
+        if (gids != null) {
+            for (int i = 0; i < gids.size(); i++) left(gids.get(i), ch);
+        } else {
+            for (Integer gid: byGroup.keySet()) left(gid, ch);
+        }
+        return last[0];
+    }
+
+    public void joined(int gid, ClientHandler ch) {
+        byGroup.compute(gid, (k, set) -> {
+            if (set == null) set = ConcurrentHashMap.newKeySet();
+            set.add(ch);
+            return set;
+        });
+    }
+
+    private void left(int gid, ClientHandler ch) {
+        byGroup.computeIfPresent(gid, (k, set) -> {
+            set.remove(ch);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    public ClientHandler byName(String username) { return byName.get(username); }
+
+    public ClientHandler byId(int userId) { return byId.get(userId); }
+
+    // the group's online members; live, not copied
+    public Set<ClientHandler> group(int gid) {
+        Set<ClientHandler> members = byGroup.get(gid);
+        return members == null ? Collections.emptySet() : Collections.unmodifiableSet(members);
+    }
+
+    // every logged-in session; live, not copied
+    public Collection<ClientHandler> sessions() { return Collections.unmodifiableSet(sessions); }
+
+    public Set<String> usernames() { return Collections.unmodifiableSet(byName.keySet()); }
+
+    public boolean isOnline(String username) { return byName.containsKey(username); }
+}
+
+// ==========================
+// server/Presence.java
+// ==========================
+package server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ Presence deltas. Logins/logouts are recorded here and sent to every connected client as
+ ONLINE|<user> / OFFLINE|<user> lines once per flush interval. Repeated changes for the same
+ user inside one interval collapse into the latest state, so a mass reconnect costs one line
+ per user per client instead of a full user list per login. The lines of one flush go out as a
+ single batch frame, one outbound queue entry however many users changed, so a big flush can't
+ overflow the queue of a client that keeps up.
+*/
+public class Presence {
+    private final ChatServer server;
+    private Map<String, Boolean> pending = new HashMap<>(); // guarded by this; true = online
+
+    public Presence(ChatServer server, long flushMs) {
+        this.server = server;
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "presence"); t.setDaemon(true); return t;
+        });
+        timer.scheduleWithFixedDelay(this::flush, flushMs, flushMs, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void online(String username) { pending.put(username, Boolean.TRUE); }
+
+    public synchronized void offline(String username) { pending.put(username, Boolean.FALSE); }
+
+    private void flush() {
+        Map<String, Boolean> batch;
+        synchronized (this) {
+            if (pending.isEmpty()) return;
+            batch = pending;
+            pending = new HashMap<>();
+        }
+        List<Frame> frames = new ArrayList<>(batch.size());
+        for (Map.Entry<String, Boolean> e: batch.entrySet()) frames.add(Frame.of(e.getValue() ? Op.ONLINE : Op.OFFLINE, e.getKey()));
+        Frame f = Frame.batch(frames);
+        f.pin();
+        try {
+            for (ClientHandler ch: server.getOnlineHandlers()) ch.send(f, null);
+        } catch (RuntimeException e) {
+            System.err.println("Presence flush failed: " + e.getMessage());
+        } finally {
+            f.unpin();
+        }
+    }
+}
+
+// ==========================
+// server/FanoutEngine.java
+// ==========================
+package server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ Group message delivery off the sender's thread. A group message becomes one job holding the live set of
+ the group's online members and the frames to send (built once, so each wire format is encoded once and
+ the same bytes go into every member's outbound queue). Every member belongs to one worker, picked from
+ its identity hash, and each worker delivers only to its own members; so a member gets the messages of a
+ group in the order they were posted, and the sender's cost is one queue offer per worker whatever the
+ group size. Callers post a conversation's messages in seq order (Sequencer.append runs them under the
+ conversation's lock). Small groups (up to SCAN members) are only posted to the workers that own one of them.
+ A worker whose queue is full makes the caller wait for room (backpressure); delivering its share on the
+ caller's thread instead would overtake what is still queued for the same members.
+ The frames stay pinned (Frame.pin) until the last worker is done with them.
+*/
+public class FanoutEngine {
+    private static final int SCAN = 64;
+
+    private static final class Job {
+        final Set<ClientHandler> members;
+        final Frame plain;
+        final Frame withSeq; // for PROTO|SEQ sessions, or null
+        final AtomicInteger workersLeft = new AtomicInteger();
+        Job(Set<ClientHandler> members, Frame plain, Frame withSeq) {
+            this.members = members; this.plain = plain; this.withSeq = withSeq;
+        }
+    }
+
+    private final List<BlockingQueue<Job>> queues;
+    private final AtomicLong jobs = new AtomicLong();
+    private final AtomicLong deliveries = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong(); // posts that found a worker's queue full
+    private final AtomicInteger shares = new AtomicInteger(); // posted to a worker and not delivered yet
+
+    public FanoutEngine(int workers, int queueCapacity) {
+        queues = new ArrayList<>(Math.max(1, workers));
+        for (int i = 0; i < Math.max(1, workers); i++) {
+            queues.add(new ArrayBlockingQueue<>(queueCapacity));
+            final int w = i;
+            Thread t = new Thread(() -> work(w), "fanout-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    // Sends plain (or withSeq to sequenced sessions) to every handler in members. The set is read by the
+    // workers later, so it must be safe to iterate concurrently (ChatServer.groupMembers).
+    public void group(Set<ClientHandler> members, Frame plain, Frame withSeq) {
+        if (members.isEmpty()) return;
+        Job j = new Job(members, plain, withSeq);
+        jobs.incrementAndGet();
+        boolean[] post = new boolean[queues.size()];
+        int n = 0;
+        if (members.size() <= SCAN) {
+            for (ClientHandler h: members) {
+                int w = worker(h);
+                if (!post[w]) { post[w] = true; n++; }
+            }
+        } else {
+            Arrays.fill(post, true);
+            n = post.length;
+        }
+        if (n == 0) return; // all of them left meanwhile
+        j.workersLeft.set(n);
+        shares.addAndGet(n);
+        plain.pin();
+        if (withSeq != null) withSeq.pin();
+        for (int w = 0; w < post.length; w++) if (post[w]) post(w, j);
+    }
+
+    private int worker(ClientHandler h) {
+        return Math.floorMod(System.identityHashCode(h), queues.size());
+    }
+
+    private void post(int w, Job j) {
+        BlockingQueue<Job> q = queues.get(w);
+        if (q.offer(j)) return;
+        waits.incrementAndGet();
+        boolean interrupted = false;
+        while (true) {
+            try { q.put(j); break; } catch (InterruptedException e) { interrupted = true; }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    private void work(int w) {
+        while (true) {
+            try {
+                deliver(w, queues.get(w).take());
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                System.err.println("Fan-out failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void deliver(int w, Job j) {
+        int n = 0;
+        try {
+            for (ClientHandler h: j.members) {
+                if (worker(h) != w) continue;
+                h.deliver(j.plain, j.withSeq);
+                n++;
+            }
+        } finally {
+            deliveries.addAndGet(n);
+            shares.decrementAndGet();
+            if (j.workersLeft.decrementAndGet() == 0) {
+                j.plain.unpin();
+                if (j.withSeq != null) j.withSeq.unpin();
+            }
+        }
+    }
+
+    // group messages posted but not yet in every member's outbound queue (ChatServer.drain)
+    public boolean busy() {
+        return shares.get() > 0;
+    }
+
+    @Override
+    public String toString() {
+        int queued = 0;
+        for (BlockingQueue<Job> q: queues) queued += q.size();
+        return String.format("fanout: workers=%d jobs=%d deliveries=%d queued=%d waits=%d",
+                queues.size(), jobs.get(), deliveries.get(), queued, waits.get());
+    }
+}
+
+// ==========================
+// server/HistoryCache.java
+// ==========================
+package server;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ The last messages of recently active conversations, so the history requests that follow a login
+ don't have to go to MySQL. Filled as messages are sent: a conversation's ring always holds an
+ unbroken run of its newest messages, so a page can be answered from it whenever the ring has
+ `limit` messages older than the cursor. Anything else (cold conversations, paging further back)
+ goes to the database.
+ Each conversation keeps up to -Dchat.history.cacheSize messages; all rings together stay under
+ -Dchat.history.cacheMB, dropping the least recently used conversations first.
+*/
+public class HistoryCache {
+    public static final class Entry {
+        public final Models.Message message; // message.id is filled in by the journal once written
+        public final String from;
+        final int bytes;
+
+        Entry(Models.Message message, String from) {
+            this.message = message;
+            this.from = from;
+            this.bytes = 96 + 2 * (message.content.length() + from.length()); // rough heap size
+        }
+    }
+
+    private static final class Ring {
+        final Entry[] entries;
+        int next = 0, count = 0;
+        long bytes = 0;
+
+        Ring(int size) { entries = new Entry[size]; }
+
+        // returns the change in bytes
+        long push(Entry e) {
+            Entry old = entries[next];
+            entries[next] = e;
+            next = (next + 1) % entries.length;
+            if (count < entries.length) count++;
+            long delta = e.bytes - (old == null ? 0 : old.bytes);
+            bytes += delta;
+            return delta;
+        }
+
+        Entry newest(int i) { return entries[slot(i)]; }
+
+        private int slot(int i) { return Math.floorMod(next - 1 - i, entries.length); }
+
+        // takes out the entry of m, the others keep their order; returns the change in bytes
+        long remove(Models.Message m) {
+            for (int i = 0; i < count; i++) {
+                Entry e = newest(i);
+                if (e.message != m) continue;
+                for (int j = i; j > 0; j--) entries[slot(j)] = entries[slot(j - 1)];
+                next = slot(0);
+                entries[next] = null;
+                count--;
+                bytes -= e.bytes;
+                return -e.bytes;
+            }
+            return 0;
+        }
+    }
+
+    private final int perConversation;
+    private final long budget;
+    private final LinkedHashMap<Long, Ring> rings = new LinkedHashMap<>(256, 0.75f, true); // access order = LRU
+    private long bytes = 0; // guarded by rings
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong forgotten = new AtomicLong();
+
+    public HistoryCache(int perConversation, long budgetBytes) {
+        this.perConversation = perConversation;
+        this.budget = budgetBytes;
+    }
+
+    // private conversations use DBHelper.convKey (always >= 1 << 32), groups their negated id
+    public static long privateKey(int userA, int userB) { return DBHelper.convKey(userA, userB); }
+
+    public static long groupKey(int groupId) { return -groupId; }
+
+    public void add(long key, Models.Message m, String from) {
+        if (perConversation <= 0) return;
+        Entry e = new Entry(m, from);
+        synchronized (rings) {
+            Ring r = rings.get(key);
+            if (r == null) { r = new Ring(perConversation); rings.put(key, r); }
+            bytes += r.push(e);
+            Iterator<Ring> it = rings.values().iterator();
+            while (bytes > budget && it.hasNext()) {
+                bytes -= it.next().bytes;
+                it.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    // The journal gave up on these messages: they are not in the store, so they must not be served from here.
+    public void forget(List<Models.Message> lost) {
+        if (perConversation <= 0) return;
+        synchronized (rings) {
+            for (Models.Message m: lost) {
+                if (m.toId == null && m.groupId == null) continue; // never cached
+                Ring r = rings.get(m.groupId != null ? groupKey(m.groupId) : privateKey(m.fromId, m.toId));
+                if (r == null) continue;
+                long delta = r.remove(m);
+                bytes += delta;
+                if (delta != 0) forgotten.incrementAndGet();
+            }
+        }
+    }
+
+    // The newest `limit` messages with id < beforeId (Long.MAX_VALUE = newest page), newest first, or null when
+    // the ring doesn't hold a full page or the page's oldest message has no id yet (needed as the next cursor).
+    // Messages not written yet have no id but are newer than every written one, so they only belong to the newest page.
+    // The ring must also hold one message older than the page: then there is a next page for certain, and the
+    // reply ends with a cursor like the store's does (which ends a page that reaches the oldest message bare).
+    public Entry[] page(long key, long beforeId, int limit) {
+        Entry[] page = new Entry[limit + 1];
+        synchronized (rings) {
+            Ring r = rings.get(key);
+            int n = 0;
+            for (int i = 0; r != null && i < r.count && n <= limit; i++) {
+                Entry e = r.newest(i);
+                long id = e.message.id;
+                if (beforeId == Long.MAX_VALUE || (id != 0 && id < beforeId)) page[n++] = e;
+            }
+            if (n > limit && page[limit - 1].message.id != 0) {
+                hits.incrementAndGet();
+                return Arrays.copyOf(page, limit);
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        synchronized (rings) {
+            return String.format("history cache: conversations=%d bytes=%d hits=%d misses=%d evictions=%d forgotten=%d",
+                    rings.size(), bytes, hits.get(), misses.get(), evictions.get(), forgotten.get());
+        }
+    }
+}
+
+// ==========================
+// server/Models.java
+// ==========================
+package server;
+
+import java.sql.Timestamp;
+
+public class Models {
+    public static class User {
+        public int id;
+        public String username;
+        public User(int id, String username) { this.id = id; this.username = username; }
+    }
+
+    public static class Message {
+        public int fromId;
+        public Integer toId; // null for group
+        public Integer groupId; // null for private
+        public String content;
+        public Timestamp createdAt;
+        public volatile long id; // 0 until the journal has written it
+        public String fromUsername; // kept by stores that don't join users (LogMessageStore)
+        public boolean pending; // recipient was offline: also goes to pending_messages (PendingMessages)
+        public long seq; // position in its conversation (Sequencer), 0 if not numbered
+        public Message(int fromId, Integer toId, Integer groupId, String content) {
+            // whole seconds, like messages.created_at, so cached and stored history print the same
+            this(fromId, toId, groupId, content, new Timestamp(System.currentTimeMillis() / 1000 * 1000));
+        }
+        public Message(int fromId, Integer toId, Integer groupId, String content, Timestamp createdAt) {
+            this.fromId = fromId; this.toId = toId; this.groupId = groupId; this.content = content; this.createdAt = createdAt;
+        }
+    }
+}
+
+// ==========================
+// server/ClientHandler.java
+// ==========================
+package server;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+public class ClientHandler implements Runnable {
+    private static final int MAX_USER_PAGE = 1000;
+    // history pages stay well below the outbound queue capacity (chat.out.capacity)
+    private static final int HISTORY_PAGE = 100;
+    private static final int MAX_HISTORY_PAGE = 500;
+    // messages per RESUME reply, also below chat.out.capacity
+    private static final int RESUME_PAGE = 500;
+    private static final byte[] TO = "TO::".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] GROUP = "GROUP::".getBytes(StandardCharsets.US_ASCII);
+
+    // command handlers indexed by opcode; a handler returns false to close the connection
+    private interface Handler { boolean handle(ClientHandler h, CommandParser c); }
+    private static final Handler[] HANDLERS = new Handler[256];
+    static {
+        HANDLERS[Op.REGISTER.code] = ClientHandler::register;
+        HANDLERS[Op.LOGIN.code] = ClientHandler::login;
+        HANDLERS[Op.MSG.code] = ClientHandler::message;
+        HANDLERS[Op.CREATE_GROUP.code] = ClientHandler::createGroup;
+        HANDLERS[Op.JOIN_GROUP.code] = ClientHandler::joinGroup;
+        HANDLERS[Op.HISTORY_PRIVATE.code] = ClientHandler::historyPrivate;
+        HANDLERS[Op.HISTORY_GROUP.code] = ClientHandler::historyGroup;
+        HANDLERS[Op.GET_USERS.code] = ClientHandler::getUsers;
+        HANDLERS[Op.GET_ONLINE.code] = ClientHandler::getOnline;
+        HANDLERS[Op.PROTO.code] = ClientHandler::proto;
+        HANDLERS[Op.ACK_PENDING.code] = ClientHandler::ackPending;
+        HANDLERS[Op.ACK.code] = ClientHandler::ack;
+        HANDLERS[Op.RESUME.code] = ClientHandler::resume;
+        HANDLERS[Op.LOGOUT.code] = (h, c) -> false;
+    }
+
+    private final ClientConnection conn;
+    private final ChatServer server;
+    private InputStream in; // only set for blocking socket mode
+    private final CommandParser parser = new CommandParser();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final AtomicBoolean reconnectSent = new AtomicBoolean();
+    private Integer userId = null;
+    private String username = null;
+    private volatile boolean sequenced; // PROTO|SEQ: messages carry conversation and seq
+    volatile long pendingSent; // last held message sent by PendingMessages; ACK_PENDING can't go past it
+    // A command that has to wait (LOGIN for the password check, a long reply for room in the outbound queue)
+    // parks the rest of its work and returns. No further input of the connection is handled until that rest has run: run() waits for
+    // it on the reader thread, the NIO worker hands the connection back once it is done (resumeParked).
+    private CompletableFuture<?> parkedOn;
+    private BooleanSupplier parkedRest;
+
+    public ClientHandler(Socket socket, ChatServer server) throws IOException {
+        this.server = server;
+        this.in = socket.getInputStream();
+        this.conn = new SocketConnection(socket, server.virtualThreads());
+        server.opened(this);
+    }
+
+    // used by the NIO event loop, which reads lines/frames itself and feeds them to handle
+    ClientHandler(ClientConnection conn, ChatServer server) {
+        this.conn = conn;
+        this.server = server;
+        server.opened(this);
+    }
+
+    public void send(Op op, String... fields) {
+        conn.send(Frame.of(op, fields), null);
+    }
+
+    public void send(Frame f, String coalesceKey) {
+        conn.send(f, coalesceKey);
+    }
+
+    public OutboundQueue outbound() { return conn.outbound(); }
+
+    public boolean isSequenced() { return sequenced; }
+
+    // server shutting down: RECONNECT|<delayMs>, once
+    void reconnect(long delayMs) {
+        if (reconnectSent.compareAndSet(false, true)) send(Op.RECONNECT, String.valueOf(delayMs));
+    }
+
+    // One message of conversation `conv` (key as in HistoryCache): INCOMING_PRIVATE|from|content or
+    // INCOMING_GROUP|gid|from|content, for PROTO|SEQ clients INCOMING_*_SEQ with conv|seq in front.
+    void deliver(long conv, long seq, String from, String content) {
+        boolean withSeq = sequenced && seq > 0;
+        if (conv < 0) {
+            Frame[] f = groupFrames(conv, seq, from, content, withSeq);
+            deliver(f[0], f[1]);
+        } else {
+            if (withSeq) send(Op.INCOMING_PRIVATE_SEQ, String.valueOf(conv), String.valueOf(seq), from, content);
+            else send(Op.INCOMING_PRIVATE, from, content);
+        }
+    }
+
+    // the same message for every member: {INCOMING_GROUP, INCOMING_GROUP_SEQ or null}
+    static Frame[] groupFrames(long conv, long seq, String from, String content, boolean withSeq) {
+        String gid = String.valueOf(-conv);
+        return new Frame[] {
+            Frame.of(Op.INCOMING_GROUP, gid, from, content),
+            withSeq && seq > 0 ? Frame.of(Op.INCOMING_GROUP_SEQ, String.valueOf(conv), String.valueOf(seq), gid, from, content) : null
+        };
+    }
+
+    // one of two prepared frames depending on PROTO|SEQ (FanoutEngine)
+    void deliver(Frame plain, Frame withSeq) {
+        send(sequenced && withSeq != null ? withSeq : plain, null);
+    }
+
+    @Override
+    public void run() {
+        try {
+            InputBuffer ib = new InputBuffer(in);
+            while (true) {
+                boolean bin = conn.isBinary();
+                if (!(bin ? ib.readFrame() : ib.readLine())) break;
+                if (!handle(ib.data, 0, ib.len, bin) || !awaitParked()) break;
+            }
+        } catch (Exception e) {
+            System.err.println("Client handler error: " + e.getMessage());
+        } finally {
+            disconnected();
+        }
+    }
+
+    // Handles one text line or binary frame body held in b[off, off+len); returns false when the
+    // connection should be closed (LOGOUT). Unknown commands are ignored, and so is everything once the
+    // server is draining (the client has been told to RECONNECT).
+    boolean handle(byte[] b, int off, int len, boolean binary) {
+        CommandParser c = parser;
+        if (!(binary ? c.parseBinary(b, off, len) : c.parseText(b, off, len))) return true;
+        Handler h = HANDLERS[c.op().code];
+        if (h == null) return true;
+        if (!server.commandStarted()) return true;
+        try {
+            return h.handle(this, c);
+        } finally {
+            if (parkedOn == null) server.commandDone(); // otherwise once its rest has run
+        }
+    }
+
+    private void park(CompletableFuture<?> until, BooleanSupplier rest) {
+        parkedOn = until;
+        parkedRest = rest;
+    }
+
+    // what the last command parked on, null if it is done
+    CompletableFuture<?> parked() { return parkedOn; }
+
+    // Runs the rest of the parked command once parked() is done (it may park again); false to close
+    // the connection.
+    boolean resumeParked() {
+        BooleanSupplier rest = parkedRest;
+        parkedOn = null;
+        parkedRest = null;
+        try {
+            return !closed.get() && rest.getAsBoolean();
+        } finally {
+            if (parkedOn == null) server.commandDone();
+        }
+    }
+
+    // blocking mode: the reader thread itself waits for a parked command
+    private boolean awaitParked() throws InterruptedException {
+        while (parkedOn != null) {
+            try {
+                parkedOn.get();
+            } catch (ExecutionException e) {
+                // the rest looks at the outcome itself
+            } catch (InterruptedException e) {
+                parkedOn = null;
+                parkedRest = null;
+                server.commandDone();
+                throw e;
+            }
+            if (!resumeParked()) return false;
+        }
+        return true;
+    }
+
+    // REGISTER and LOGIN park until the password is hashed (AuthService), so the commands after them see the result
+    private boolean register(CommandParser c) {
+        String user = c.str(0); String pass = c.str(1);
+        CompletableFuture<Boolean> check = server.auth.register(user, pass);
+        park(check, () -> registered(user, check));
+        return true;
+    }
+
+    private boolean registered(String user, CompletableFuture<Boolean> check) {
+        try {
+            boolean ok = AuthService.result(check);
+            if (ok) server.userRegistered(user);
+            send(ok?Op.REGISTER_OK:Op.REGISTER_FAIL);
+        } catch (SQLException e) { send(Op.REGISTER_FAIL); }
+        return true;
+    }
+
+    private boolean login(CommandParser c) {
+        String user = c.str(0); String pass = c.str(1);
+        if (server.cluster != null) {
+            // the user belongs to another node: the client reconnects there and logs in again
+            String[] to = server.cluster.redirectFor(user);
+            if (to != null) { send(Op.REDIRECT, to[0], to[1]); return true; }
+        }
+        CompletableFuture<Integer> check = server.auth.login(user, pass);
+        park(check, () -> loggedIn(user, check));
+        return true;
+    }
+
+    private boolean loggedIn(String user, CompletableFuture<Integer> check) {
+        try {
+            Integer id = AuthService.result(check);
+            if (id != null) {
+                // addOnline registers the session under these; not logged in unless it succeeds
+                this.userId = id; this.username = user;
+                try {
+                    server.addOnline(this);
+                } catch (SQLException e) {
+                    this.userId = null; this.username = null;
+                    throw e;
+                }
+                send(Op.LOGIN_OK, String.valueOf(id), user);
+                // others learn about us through the next presence batch; we fetch lists with GET_USERS/GET_ONLINE
+                server.presence.online(user);
+                if (server.cluster != null) server.cluster.localOnline(id, user);
+                // what was sent to us while we were offline
+                server.pending.deliver(this, id);
+            } else send(Op.LOGIN_FAIL);
+        } catch (SQLException e) { send(Op.LOGIN_FAIL); }
+        return true;
+    }
+
+    // MSG|TO::<toUsername>|content
+    // For group: MSG|GROUP::<groupId>|content
+    private boolean message(CommandParser c) {
+        if (userId == null) { send(Op.ERR, "Not authenticated"); return true; }
+        if (c.startsWith(0, TO)) {
+            String toUser = c.name(0, TO.length);
+            String content = c.argc() > 1 ? c.str(1) : "";
+            ClientHandler online = server.getByUsername(toUser);
+            Integer toId = server.getUserIdByName(toUser);
+            Models.Message m = new Models.Message(userId, toId, null, content);
+            m.fromUsername = username;
+            if (online == null && toId != null
+                    && (server.cluster == null || !server.cluster.forwardPrivate(toUser, userId, username, content))) {
+                server.pending.hold(m); // offline: delivered at their next login
+                // A login since the lookup may have read its backlog before the hold; then it gets the message
+                // live instead. A login after this lookup waits for the held message to be written.
+                if ((online = server.getByUsername(toUser)) != null) server.pending.unhold(m);
+            }
+            ClientHandler toHandler = online;
+            // save history (queued, written in batches by the journal); numbered first, delivery carries the seq
+            if (toId == null) { server.journal.append(m); return true; }
+            long conv = HistoryCache.privateKey(userId, toId);
+            server.sequencer.append(conv, m, username, () -> {
+                if (toHandler != null) toHandler.deliver(conv, m.seq, username, content);
+                // the sender's own seq, so its client sees every seq of the conversation
+                if (sequenced && m.seq > 0) send(Op.SENT, String.valueOf(conv), String.valueOf(m.seq));
+            });
+        } else if (c.startsWith(0, GROUP)) {
+            int gid = c.intArg(0, GROUP.length);
+            String content = c.argc() > 1 ? c.str(1) : "";
+            Models.Message m = new Models.Message(userId, null, gid, content);
+            m.fromUsername = username;
+            long conv = HistoryCache.groupKey(gid);
+            // broadcast to group members (the sender included), from the fan-out workers
+            server.sequencer.append(conv, m, username, () -> {
+                Frame[] f = groupFrames(conv, m.seq, username, content, true);
+                server.fanout.group(server.groupMembers(gid), f[0], f[1]);
+            });
+            if (server.cluster != null) server.cluster.forwardGroup(gid, username, content);
+        }
+        return true;
+    }
+
+    // CREATE_GROUP|groupName
+    private boolean createGroup(CommandParser c) {
+        if (userId==null) { send(Op.ERR, "Not authenticated"); return true; }
+        String groupName = c.str(0);
+        try {
+            int gid = server.createGroup(groupName, userId);
+            send(Op.CREATE_GROUP_OK, String.valueOf(gid));
+        } catch (SQLException e) { send(Op.CREATE_GROUP_FAIL); }
+        return true;
+    }
+
+    // JOIN_GROUP|groupId
+    private boolean joinGroup(CommandParser c) {
+        if (userId==null) { send(Op.ERR, "Not authenticated"); return true; }
+        int gid = c.intArg(0);
+        try { server.joinGroup(userId, gid); send(Op.JOIN_GROUP_OK, String.valueOf(gid)); } catch (SQLException e) { send(Op.JOIN_GROUP_FAIL); }
+        return true;
+    }
+
+    // HISTORY_PRIVATE|otherUsername[|beforeId|limit]
+    // Newest page first: HISTORY_PRIVATE_LINE per message (newest to oldest), then HISTORY_PRIVATE_END|<beforeId>
+    // to pass for the next older page, or a bare HISTORY_PRIVATE_END when there is nothing older.
+    private boolean historyPrivate(CommandParser c) {
+        if (userId==null) { send(Op.ERR, "Not authenticated"); return true; }
+        String other = c.str(0);
+        long before = historyCursor(c);
+        int limit = historyLimit(c);
+        try {
+            Integer otherId = server.getUserIdByName(other);
+            if (otherId == null) { send(Op.HISTORY_PRIVATE_END); return true; }
+            if (sendCached(HistoryCache.privateKey(userId, otherId), before, limit, Op.HISTORY_PRIVATE_LINE, Op.HISTORY_PRIVATE_END)) return true;
+            long next = server.messages.streamPrivateHistory(userId, otherId, before, limit,
+                    (id, from, content, ts) -> send(Op.HISTORY_PRIVATE_LINE, historyLine(from, content, ts)));
+            endPage(Op.HISTORY_PRIVATE_END, next);
+        } catch (SQLException e) { send(Op.HISTORY_PRIVATE_FAIL); }
+        return true;
+    }
+
+    // HISTORY_GROUP|groupId[|beforeId|limit], paged like HISTORY_PRIVATE
+    private boolean historyGroup(CommandParser c) {
+        int gid = c.intArg(0);
+        long before = historyCursor(c);
+        int limit = historyLimit(c);
+        if (sendCached(HistoryCache.groupKey(gid), before, limit, Op.HISTORY_GROUP_LINE, Op.HISTORY_GROUP_END)) return true;
+        try {
+            long next = server.messages.streamGroupHistory(gid, before, limit,
+                    (id, from, content, ts) -> send(Op.HISTORY_GROUP_LINE, historyLine(from, content, ts)));
+            endPage(Op.HISTORY_GROUP_END, next);
+        } catch (SQLException e) { send(Op.HISTORY_GROUP_FAIL); }
+        return true;
+    }
+
+    // answers the page from the history cache if it holds all of it
+    private boolean sendCached(long key, long before, int limit, Op line, Op end) {
+        HistoryCache.Entry[] page = server.history.page(key, before, limit);
+        if (page == null) return false;
+        for (HistoryCache.Entry e: page) send(line, historyLine(e.from, e.message.content, e.message.createdAt));
+        endPage(end, page[page.length - 1].message.id); // the cache only answers pages with older ones behind them
+        return true;
+    }
+
+    // END|<cursor> for the next older page, a bare END when there is nothing older; the same from cache and store
+    private void endPage(Op end, long next) {
+        if (next > 0) send(end, String.valueOf(next)); else send(end);
+    }
+
+    private static long historyCursor(CommandParser c) {
+        return c.isEmpty(1) ? Long.MAX_VALUE : c.longArg(1);
+    }
+
+    private static int historyLimit(CommandParser c) {
+        return c.isEmpty(2) ? HISTORY_PAGE : Math.max(1, Math.min(c.intArg(2), MAX_HISTORY_PAGE));
+    }
+
+    private static String historyLine(String from, String content, java.sql.Timestamp ts) {
+        return "[" + ts + "] " + from + ": " + content;
+    }
+
+    // GET_USERS                              -> whole directory (old clients), paced like GET_ONLINE
+    // GET_USERS|<cursor>|<n>[|<prefix>]        -> first ("" cursor) or next page of the users whose name starts
+    //                                             with prefix, ends with USER_MORE|<cursor> or USER_END
+    private boolean getUsers(CommandParser c) {
+        if (c.argc() < 2) {
+            return sendPaced(new Iterator<String>() {
+                private List<String> page = Collections.emptyList();
+                private int i = 0;
+                private String after = "";
+                private boolean last = false; // a short page: nothing after it
+
+                @Override
+                public boolean hasNext() {
+                    if (i == page.size() && !last) {
+                        page = server.directory.page("", after, MAX_USER_PAGE);
+                        i = 0;
+                        last = page.size() < MAX_USER_PAGE;
+                        if (!page.isEmpty()) after = page.get(page.size()-1);
+                    }
+                    return i < page.size();
+                }
+
+                @Override
+                public String next() {
+                    if (!hasNext()) throw new NoSuchElementException();
+                    return page.get(i++);
+                }
+            }, Op.USER, Op.USER_END);
+        } else {
+            int limit = Math.max(1, Math.min(c.intArg(1), MAX_USER_PAGE));
+            // the cursor is the last name sent, so it stays valid while users are added
+            List<String> users = server.directory.page(c.argc() > 2 ? c.str(2) : "", c.str(0), limit);
+            for (String u: users) send(Op.USER, u);
+            if (users.size() < limit) send(Op.USER_END); else send(Op.USER_MORE, users.get(users.size()-1));
+        }
+        return true;
+    }
+
+    // GET_ONLINE -> ONLINE|<username> for everyone connected now, then ONLINE_END
+    private boolean getOnline(CommandParser c) {
+        return sendPaced(new ArrayList<>(server.getOnlineUsernames()).iterator(), Op.ONLINE, Op.ONLINE_END);
+    }
+
+    // line|<name> per name, then end. The list may be longer than the outbound queue, so it only sends
+    // while the queue has room and otherwise parks until the client has read some of it.
+    private boolean sendPaced(Iterator<String> names, Op line, Op end) {
+        OutboundQueue q = conn.outbound();
+        while (names.hasNext()) {
+            if (!q.hasRoom()) {
+                park(q.whenRoom(), () -> sendPaced(names, line, end));
+                return true;
+            }
+            send(line, names.next());
+        }
+        send(end);
+        return true;
+    }
+
+    // ACK_PENDING|<lastId>: the client has the offline backlog up to lastId; answered with the next page
+    private boolean ackPending(CommandParser c) {
+        if (userId == null) { send(Op.ERR, "Not authenticated"); return true; }
+        server.pending.ack(this, userId, c.longArg(0));
+        return true;
+    }
+
+    // ACK|conv|seq: the client has every message of conversation conv up to seq (PROTO|SEQ clients)
+    private boolean ack(CommandParser c) {
+        if (userId == null) { send(Op.ERR, "Not authenticated"); return true; }
+        long conv = c.longArg(0);
+        try {
+            // never past what the conversation has: an inflated ack would hide everything sent until it is reached
+            if (canRead(conv)) server.acks.ack(userId, conv, Math.min(c.longArg(1), server.sequencer.last(conv)));
+        } catch (SQLException e) { /* not recorded; the client acks again later */ }
+        return true;
+    }
+
+    // RESUME|conv|afterSeq -> the conversation's messages after afterSeq, oldest first, as INCOMING_*_SEQ lines,
+    // then RESUME_MORE|conv|lastSeq (ask again from there) or RESUME_END|conv|seq (caught up to seq).
+    // Bare RESUME -> RESUME_MORE|conv|ackedSeq for every acknowledged conversation with newer messages, then
+    // RESUME_END; the client resumes those one by one.
+    private boolean resume(CommandParser c) {
+        if (userId == null) { send(Op.ERR, "Not authenticated"); return true; }
+        if (!sequenced) { send(Op.ERR, "RESUME needs PROTO|SEQ"); return true; }
+        try {
+            if (c.argc() < 2) {
+                for (Map.Entry<Long, Long> e: server.acks.of(userId).entrySet()) {
+                    long conv = e.getKey(), acked = e.getValue();
+                    long last = server.sequencer.last(conv);
+                    // a conversation whose stored messages are all gone (archived/compacted) numbers from 1 again
+                    // (its old ack is overwritten, or it would be ahead of every new message for good)
+                    if (last > acked && canRead(conv)) send(Op.RESUME_MORE, String.valueOf(conv), String.valueOf(acked));
+                    else if (last < acked && canRead(conv)) {
+                        server.acks.reset(userId, conv, 0);
+                        send(Op.RESUME_MORE, String.valueOf(conv), "0");
+                    }
+                }
+                send(Op.RESUME_END);
+                return true;
+            }
+            long conv = c.longArg(0), after = c.longArg(1);
+            if (!canRead(conv)) { send(Op.ERR, "Not a member of " + conv); return true; }
+            long last = server.sequencer.last(conv);
+            if (after > last) after = 0;
+            int[] n = { 0 };
+            long end = server.messages.streamSince(conv, after, RESUME_PAGE, (seq, from, content, ts) -> {
+                deliver(conv, seq, from, content);
+                n[0]++;
+            });
+            if (n[0] == RESUME_PAGE) send(Op.RESUME_MORE, String.valueOf(conv), String.valueOf(end));
+            else send(Op.RESUME_END, String.valueOf(conv), String.valueOf(Math.max(end, after)));
+        } catch (SQLException e) { send(Op.ERR, "Resume failed"); }
+        return true;
+    }
+
+    // conversation keys come from the client: only its own private conversations and its groups
+    private boolean canRead(long conv) throws SQLException {
+        if (conv < 0) return conv >= Integer.MIN_VALUE && server.groups.members((int) -conv).contains(userId);
+        return (int) (conv >>> 32) == userId || (int) conv == userId;
+    }
+
+    // PROTO|BIN switches this connection to length-prefixed binary frames (see Frame).
+    // Only allowed before LOGIN, so nothing else is being sent to us while we switch.
+    // PROTO|SEQ (any time) adds conversation and sequence number to incoming messages, see resume().
+    private boolean proto(CommandParser c) {
+        if (c.argc() >= 1 && "SEQ".equals(c.str(0)) && server.sequencer.enabled()) {
+            sequenced = true;
+            send(Op.PROTO_OK, "SEQ");
+            return true;
+        }
+        if (userId != null || c.argc() < 1 || !"BIN".equals(c.str(0))) { send(Op.ERR, "Unsupported protocol switch"); return true; }
+        send(Op.PROTO_OK, "BIN");
+        conn.setBinary(true);
+        return true;
+    }
+
+    // Called once when the connection goes away, whichever side closed it.
+    void disconnected() {
+        if (!closed.compareAndSet(false, true)) return;
+        conn.close();
+        server.closed(this);
+        server.removeOnline(this);
+        if (username != null && server.getByUsername(username) == null) {
+            if (server.cluster != null) server.cluster.localOffline(userId, username);
+            // while draining everyone leaves and comes back shortly: no OFFLINE for each of them
+            if (!server.isDraining() && !server.isOnlineAnywhere(username)) server.presence.offline(username);
+        }
+    }
+
+    public Integer getUserId() { return userId; }
+    public String getUsername() { return username; }
+}
+
+// ==========================
+// server/ChatServer.java
+// ==========================
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.NetworkChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ChatServer {
+    private final int port;
+    public DBHelper db;
+    public AuthService auth;
+    public UserDirectory directory;
+    public MessageStore messages;
+    public MessageJournal journal;
+    public PendingMessages pending;
+    public Sequencer sequencer;
+    public ConversationAcks acks;
+    public FanoutEngine fanout;
+    private ServerSocket serverSocket;
+    private NioServer nio;
+    private final SessionRegistry sessions = new SessionRegistry();
+    private final Set<ClientHandler> connections = ConcurrentHashMap.newKeySet(); // logged in or not
+    private volatile boolean draining;
+    private final AtomicInteger commands = new AtomicInteger(); // being handled right now
+    public GroupCache groups;
+    public Presence presence;
+    public HistoryCache history;
+    public ClusterNode cluster; // null unless -Dchat.cluster.nodes is set
+
+    // -Dchat.io=threads (one platform thread per client, default), virtual (one virtual thread
+    // per client) or nio (selector event loop). The server uses the Java 21 thread API, so it needs Java 21 in every mode.
+    private static final String IO_MODE = System.getProperty("chat.io", "threads");
+    private static final int IO_THREADS = Integer.getInteger("chat.io.threads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    private static final int WORKER_THREADS = Integer.getInteger("chat.workers", Runtime.getRuntime().availableProcessors() * 4);
+    // write-behind message journal: -Dchat.journal.capacity, -Dchat.journal.batchSize, -Dchat.journal.flushMs
+    private static final int JOURNAL_CAPACITY = Integer.getInteger("chat.journal.capacity", 10_000);
+    private static final int JOURNAL_BATCH = Integer.getInteger("chat.journal.batchSize", 500);
+    private static final int JOURNAL_FLUSH_MS = Integer.getInteger("chat.journal.flushMs", 50);
+    // presence changes are batched and sent every -Dchat.presence.flushMs
+    private static final int PRESENCE_FLUSH_MS = Integer.getInteger("chat.presence.flushMs", 250);
+    // newest messages per active conversation (-Dchat.history.cacheSize, 0 = off) within -Dchat.history.cacheMB
+    private static final int HISTORY_CACHE_SIZE = Integer.getInteger("chat.history.cacheSize", 200);
+    private static final int HISTORY_CACHE_MB = Integer.getInteger("chat.history.cacheMB", 64);
+    // -Dchat.partitions.manage=true: create monthly partitions -Dchat.partitions.ahead months ahead and archive
+    // those older than -Dchat.partitions.hotMonths into -Dchat.archive.dir (also read on its own if it exists)
+    private static final boolean PARTITIONS_MANAGE = Boolean.getBoolean("chat.partitions.manage");
+    private static final int PARTITIONS_AHEAD = Integer.getInteger("chat.partitions.ahead", 2);
+    private static final int PARTITIONS_HOT_MONTHS = Integer.getInteger("chat.partitions.hotMonths", 6);
+    private static final String ARCHIVE_DIR = System.getProperty("chat.archive.dir", "archive");
+    // -Dchat.store=jdbc (messages table, default) or log (local segment files in -Dchat.log.dir, see LogMessageStore)
+    private static final String STORE = System.getProperty("chat.store", "jdbc");
+    private static final String LOG_DIR = System.getProperty("chat.log.dir", "message-log");
+    private static final int LOG_SEGMENT_MB = Integer.getInteger("chat.log.segmentMB", 64);
+    private static final int LOG_RETENTION_DAYS = Integer.getInteger("chat.log.retentionDays", 0);
+    private static final boolean LOG_FSYNC = Boolean.getBoolean("chat.log.fsync");
+    // -Dchat.cluster.nodes=1@host:clusterPort/clientPort,... with -Dchat.cluster.self=<id> runs this server as one
+    // node of a cluster (see ClusterNode); -Dchat.cluster.assign=hash pins every user to one node
+    private static final String CLUSTER_NODES = System.getProperty("chat.cluster.nodes");
+    private static final int CLUSTER_SELF = Integer.getInteger("chat.cluster.self", 1);
+    private static final boolean CLUSTER_HASH = "hash".equals(System.getProperty("chat.cluster.assign"));
+    // offline recipients get their backlog in pages of -Dchat.pending.pageSize after LOGIN
+    private static final int PENDING_PAGE = Integer.getInteger("chat.pending.pageSize", 200);
+    // ACK|conv|seq from clients reaches conversation_acks every -Dchat.acks.flushMs
+    private static final int ACKS_FLUSH_MS = Integer.getInteger("chat.acks.flushMs", 1000);
+    // group messages are delivered by -Dchat.fanout.threads workers, each with -Dchat.fanout.queue pending messages
+    private static final int FANOUT_THREADS = Integer.getInteger("chat.fanout.threads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    private static final int FANOUT_QUEUE = Integer.getInteger("chat.fanout.queue", 4096);
+    // LOGIN/REGISTER: -Dchat.auth.threads hash passwords (PBKDF2, -Dchat.auth.iterations), at most
+    // -Dchat.auth.queue wait for them (for up to -Dchat.auth.timeoutMs); user rows are cached -Dchat.auth.cacheSec
+    private static final int AUTH_THREADS = Integer.getInteger("chat.auth.threads", Runtime.getRuntime().availableProcessors());
+    private static final int AUTH_QUEUE = Integer.getInteger("chat.auth.queue", 2048);
+    private static final int AUTH_ITERATIONS = Integer.getInteger("chat.auth.iterations", 210_000);
+    private static final int AUTH_TIMEOUT_MS = Integer.getInteger("chat.auth.timeoutMs", 30_000);
+    private static final int AUTH_CACHE_SEC = Integer.getInteger("chat.auth.cacheSec", 60);
+    // users registered through other nodes (or straight into the table) show up in the directory within this
+    private static final int USERS_REFRESH_SEC = Integer.getInteger("chat.users.refreshSec", 30);
+    // Shutdown (SIGTERM): clients are told RECONNECT|<ms> with ms random below -Dchat.drain.spreadMs, and get
+    // -Dchat.drain.timeoutMs to receive what is queued for them. -Dchat.reusePort=true sets SO_REUSEPORT on the
+    // listening sockets, so the next version can listen on the same port before this one stops.
+    private static final int DRAIN_SPREAD_MS = Integer.getInteger("chat.drain.spreadMs", 10_000);
+    private static final int DRAIN_TIMEOUT_MS = Integer.getInteger("chat.drain.timeoutMs", 5_000);
+    private static final boolean REUSE_PORT = Boolean.getBoolean("chat.reusePort");
+    // -Dchat.stats.intervalSec=N prints pool/queue metrics every N seconds (0 = off)
+    private static final int STATS_INTERVAL_SEC = Integer.getInteger("chat.stats.intervalSec", 0);
+
+    public ChatServer(int port, String dbUrl, String dbUser, String dbPass) throws ClassNotFoundException, IOException {
+        this.port = port;
+        this.db = new DBHelper(dbUrl, dbUser, dbPass);
+        this.auth = new AuthService(db, AUTH_THREADS, AUTH_QUEUE, AUTH_ITERATIONS, AUTH_CACHE_SEC, AUTH_TIMEOUT_MS);
+        this.directory = new UserDirectory(db);
+        this.groups = new GroupCache(db);
+        this.presence = new Presence(this, PRESENCE_FLUSH_MS);
+        this.fanout = new FanoutEngine(FANOUT_THREADS, FANOUT_QUEUE);
+        if (CLUSTER_NODES != null) this.cluster = new ClusterNode(this, CLUSTER_NODES, CLUSTER_SELF, CLUSTER_HASH);
+        // the cache only sees messages sent through this node, so in a cluster it would serve incomplete pages
+        int historySize = cluster != null ? 0 : HISTORY_CACHE_SIZE;
+        if (cluster != null && HISTORY_CACHE_SIZE > 0) System.out.println("History cache disabled in cluster mode");
+        this.history = new HistoryCache(historySize, HISTORY_CACHE_MB * 1024L * 1024L);
+        if (STORE.equals("log")) {
+            this.messages = new LogMessageStore(new File(LOG_DIR), LOG_SEGMENT_MB * 1024 * 1024, LOG_RETENTION_DAYS, LOG_FSYNC);
+        } else {
+            this.messages = new JdbcMessageStore(db);
+            Path archiveDir = Paths.get(ARCHIVE_DIR);
+            if (PARTITIONS_MANAGE || Files.isDirectory(archiveDir)) {
+                ArchiveStore archive = new ArchiveStore(archiveDir);
+                db.setArchive(archive);
+                if (PARTITIONS_MANAGE) new MessagePartitions(db, archive, PARTITIONS_AHEAD, PARTITIONS_HOT_MONTHS).start();
+            }
+        }
+        this.pending = new PendingMessages(db, PENDING_PAGE);
+        this.journal = new MessageJournal(messages, pending, history, JOURNAL_CAPACITY, JOURNAL_BATCH, JOURNAL_FLUSH_MS);
+        this.sequencer = new Sequencer(messages, journal, history, cluster == null);
+        this.acks = new ConversationAcks(db, ACKS_FLUSH_MS);
+        // hand clients over and flush queued messages before the JVM exits (SIGTERM / Ctrl+C)
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> { drain(); journal.close(); messages.close(); acks.close(); }, "journal-drain"));
+    }
+
+    public void start() throws IOException {
+        directory.start(USERS_REFRESH_SEC);
+        startStats();
+        if (cluster != null) cluster.start();
+        if (IO_MODE.equals("nio")) {
+            nio = new NioServer(this, port, IO_THREADS, WORKER_THREADS);
+            nio.start();
+            return;
+        }
+        // virtual threads park instead of holding an OS thread while blocked in readLine/JDBC
+        ExecutorService pool = IO_MODE.equals("virtual") ? Executors.newVirtualThreadPerTaskExecutor() : Executors.newCachedThreadPool();
+        serverSocket = new ServerSocket();
+        reusePort(serverSocket);
+        serverSocket.bind(new InetSocketAddress(port), 50);
+        System.out.println("ChatServer (" + IO_MODE + ") listening on port " + port);
+        while (true) {
+            Socket s;
+            try {
+                s = serverSocket.accept();
+            } catch (SocketException e) {
+                if (draining) return; // drain() closed the socket
+                throw e;
+            }
+            try {
+                ClientHandler h = new ClientHandler(s, this);
+                pool.execute(h);
+            } catch (IOException e) { s.close(); }
+        }
+    }
+
+    static void reusePort(ServerSocket ss) throws IOException {
+        if (!REUSE_PORT) return;
+        if (ss.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) ss.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        else System.err.println("SO_REUSEPORT is not supported here, -Dchat.reusePort ignored");
+    }
+
+    static void reusePort(NetworkChannel ch) throws IOException {
+        if (!REUSE_PORT) return;
+        if (ch.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) ch.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        else System.err.println("SO_REUSEPORT is not supported here, -Dchat.reusePort ignored");
+    }
+
+    /*
+     Graceful shutdown, run by the shutdown hook before the journal is flushed:
+      1. stop accepting (with -Dchat.reusePort a newly started version already listens on the port and now
+         gets every new connection; otherwise clients retry until the new version is up)
+      2. send every connection RECONNECT|<delay>, the delay random in [0, DRAIN_SPREAD_MS), so their
+         reconnects and logins are spread out instead of all arriving in the same second
+      3. from then on commands are ignored; wait up to DRAIN_TIMEOUT_MS for the ones being handled, the
+         group fan-out and the outbound queues to finish, then close the connections
+     Messages accepted until then are in the journal, which the hook closes next.
+    */
+    public void drain() {
+        draining = true;
+        try {
+            if (serverSocket != null) serverSocket.close();
+            if (nio != null) nio.stopAccepting();
+        } catch (IOException e) {
+            System.err.println("Drain: closing the listening socket failed: " + e.getMessage());
+        }
+        System.out.println("Draining " + connections.size() + " connections");
+        for (ClientHandler h: connections) h.reconnect(ThreadLocalRandom.current().nextLong(Math.max(1, DRAIN_SPREAD_MS)));
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MS;
+        try {
+            while (System.currentTimeMillis() < deadline
+                    && (commands.get() > 0 || fanout.busy() || connections.stream().anyMatch(h -> h.outbound().depth() > 0))) Thread.sleep(20);
+            Thread.sleep(100); // the last buffers taken off the queues are still being written
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (ClientHandler h: connections) h.disconnected();
+        System.out.println("Drained");
+    }
+
+    public boolean isDraining() { return draining; }
+
+    // -Dchat.io=virtual: connection threads are virtual (the others need no virtual thread support)
+    boolean virtualThreads() { return IO_MODE.equals("virtual"); }
+
+    // ClientHandler.handle brackets every command with these; false once draining (the command is ignored)
+    boolean commandStarted() {
+        commands.incrementAndGet();
+        if (!draining) return true;
+        commands.decrementAndGet();
+        return false;
+    }
+
+    void commandDone() {
+        commands.decrementAndGet();
+    }
+
+    // every connection, logged in or not, so drain() can reach them
+    void opened(ClientHandler ch) {
+        connections.add(ch);
+        // accepted just as drain() started
+        if (draining) ch.reconnect(ThreadLocalRandom.current().nextLong(Math.max(1, DRAIN_SPREAD_MS)));
+    }
+
+    void closed(ClientHandler ch) {
+        connections.remove(ch);
+    }
+
+    private void startStats() {
+        if (STATS_INTERVAL_SEC <= 0) return;
+        ScheduledExecutorService stats = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "chat-stats"); t.setDaemon(true); return t;
+        });
+        stats.scheduleAtFixedRate(() -> {
+            System.out.println(db.getPool());
+            System.out.println(auth);
+            System.out.println(directory);
+            System.out.println(journal);
+            System.out.println(pending);
+            System.out.println(sequencer);
+            System.out.println(acks);
+            System.out.println(messages);
+            System.out.println(history);
+            System.out.println(fanout);
+            System.out.println(outboundStats());
+            System.out.println(SharedBuffer.stats());
+            if (cluster != null) System.out.println(cluster);
+        }, STATS_INTERVAL_SEC, STATS_INTERVAL_SEC, TimeUnit.SECONDS);
+    }
+
+    private String outboundStats() {
+        int sessions = 0; long total = 0; int max = 0; String deepest = "-";
+        for (ClientHandler ch: getOnlineHandlers()) {
+            int d = ch.outbound().depth();
+            sessions++; total += d;
+            if (d > max) { max = d; deepest = ch.getUsername(); }
+        }
+        return String.format("outbound: sessions=%d queued=%d max-depth=%d (%s) dropped=%d coalesced=%d slow-disconnects=%d",
+                sessions, total, max, deepest, OutboundQueue.dropped.get(), OutboundQueue.coalesced.get(), OutboundQueue.slowDisconnects.get());
+    }
+
+    // manage online (see SessionRegistry)
+    public void addOnline(ClientHandler ch) throws SQLException {
+        sessions.add(ch, groups.groupsOf(ch.getUserId()));
+    }
+
+    public void removeOnline(ClientHandler ch) {
+        if (ch.getUserId() == null) return; // never logged in
+        IntSet gids;
+        try { gids = groups.groupsOf(ch.getUserId()); } catch (SQLException e) { gids = null; }
+        if (sessions.remove(ch, gids)) groups.forgetUser(ch.getUserId());
+    }
+
+    // groups: every membership change goes through here so the caches stay in sync with the DB
+    public int createGroup(String name, int ownerId) throws SQLException {
+        int gid = db.createGroup(name, ownerId);
+        joinGroup(ownerId, gid);
+        return gid;
+    }
+
+    public void joinGroup(int userId, int gid) throws SQLException {
+        db.addUserToGroup(userId, gid);
+        groups.memberAdded(gid, userId);
+        ClientHandler ch = sessions.byId(userId);
+        if (ch != null) sessions.joined(gid, ch);
+        if (cluster != null) cluster.memberAdded(gid, userId);
+    }
+
+    public ClientHandler getByUsername(String username) {
+        return sessions.byName(username);
+    }
+
+    public ClientHandler getById(int userId) {
+        return sessions.byId(userId);
+    }
+
+    public Integer getUserIdByName(String username) {
+        ClientHandler ch = sessions.byName(username);
+        if (ch != null) return ch.getUserId();
+        Integer id = directory.id(username);
+        if (id == null && cluster != null) id = cluster.remoteUserId(username);
+        if (id != null) return id;
+        // not in the directory yet (registered elsewhere since the last refresh)
+        try {
+            id = auth.userId(username);
+            if (id != null) directory.add(id, username);
+            return id;
+        } catch (SQLException e) { return null; }
+    }
+
+    // REGISTER: the new user is listed and can be messaged right away
+    public void userRegistered(String username) {
+        try {
+            Integer id = auth.userId(username);
+            if (id != null) directory.add(id, username);
+        } catch (SQLException e) { /* the next refresh picks them up */ }
+    }
+
+    // live (not copied) set of the group's online members' handlers; safe to iterate from any thread
+    public Set<ClientHandler> groupMembers(int groupId) {
+        return sessions.group(groupId);
+    }
+
+    public Set<String> getOnlineUsernames() {
+        if (cluster == null) return sessions.usernames();
+        Set<String> all = new HashSet<>(sessions.usernames());
+        all.addAll(cluster.remoteUsernames());
+        return all;
+    }
+
+    // logged in here or on another cluster node
+    public boolean isOnlineAnywhere(String username) {
+        return sessions.isOnline(username) || (cluster != null && cluster.isOnlineRemotely(username));
+    }
+
+    // logged-in sessions, live and weakly consistent, for broadcasts; iterating takes no lock
+    public Collection<ClientHandler> getOnlineHandlers() {
+        return sessions.sessions();
+    }
+
+    public static void main(String[] args) throws Exception {
+        // Usage: java server.ChatServer 9000 jdbc:mysql://localhost:3306/chatdb dbuser dbpass
+        // Add -Dchat.io=nio (selector event loop) or -Dchat.io=virtual (virtual threads) before the class name.
+        if (args.length<4) {
+            System.out.println("Usage: java server.ChatServer <port> <dbUrl> <dbUser> <dbPass>");
+            return;
+        }
+        int port = Integer.parseInt(args[0]);
+        ChatServer s = new ChatServer(port, args[1], args[2], args[3]);
+        s.start();
+    }
+}
+
+// ==========================
+// server/ClusterNode.java
+// ==========================
+package server;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ Cluster mode: several ChatServer processes share one user base and one MySQL database.
+   -Dchat.cluster.nodes=1@host:clusterPort/clientPort,2@host:clusterPort/clientPort,...  -Dchat.cluster.self=1
+ Every node tells its peers who is logged in on it (a full snapshot whenever a link comes up, then
+ USER_ONLINE/USER_OFFLINE changes), so each node knows where every online user is. A message for a user,
+ or for group members, on another node is forwarded to that node, which delivers it to its own sessions.
+ Messages are stored by the node the sender is connected to; a private message that arrives after its
+ recipient left the receiving node is held there for their next login (PendingMessages).
+ Each node opens one outgoing TCP link per peer for everything it sends, reconnecting with backoff, and
+ accepts the peers' links on its cluster port. Sends are queued per peer (-Dchat.cluster.queue) and the
+ link's writer thread writes whatever has queued up with one flush.
+ With -Dchat.cluster.assign=hash every user belongs to one node (hash of the name); LOGIN on another node
+ is answered with REDIRECT|host|clientPort.
+ Link messages: int32 length, u8 type, then the fields (ints, UTF strings).
+*/
+public class ClusterNode {
+    private static final byte HELLO = 1, USER_ONLINE = 2, USER_OFFLINE = 3, PRIVATE = 4, GROUP = 5, GROUP_MEMBER = 6;
+    private static final int QUEUE = Integer.getInteger("chat.cluster.queue", 65_536);
+    private static final int BATCH = 512;
+
+    static final class Peer {
+        final int id;
+        final String host;
+        final int port, clientPort;
+        Link link; // outgoing, null for self
+
+        Peer(int id, String host, int port, int clientPort) {
+            this.id = id; this.host = host; this.port = port; this.clientPort = clientPort;
+        }
+    }
+
+    // where a user logged in on another node is; `via` is the incoming link that told us
+    private static final class Remote {
+        final int userId, node;
+        final String username;
+        final Object via;
+
+        Remote(int userId, String username, int node, Object via) {
+            this.userId = userId; this.username = username; this.node = node; this.via = via;
+        }
+    }
+
+    private final ChatServer server;
+    private final Peer self;
+    private final Peer[] nodes; // all nodes including self, by id
+    private final Map<Integer, Peer> byId = new HashMap<>();
+    private final boolean hashAssign;
+    private final Map<String, Remote> remoteByName = new ConcurrentHashMap<>();
+    private final Map<Integer, Remote> remoteById = new ConcurrentHashMap<>();
+
+    private final AtomicLong forwarded = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    public ClusterNode(ChatServer server, String nodesSpec, int selfId, boolean hashAssign) {
+        this.server = server;
+        this.hashAssign = hashAssign;
+        List<Peer> list = new ArrayList<>();
+        for (String spec: nodesSpec.split(",")) {
+            // id@host:clusterPort[/clientPort]
+            String s = spec.trim();
+            int at = s.indexOf('@'), colon = s.lastIndexOf(':'), slash = s.indexOf('/', colon);
+            int id = Integer.parseInt(s.substring(0, at));
+            String host = s.substring(at + 1, colon);
+            int port = Integer.parseInt(slash < 0 ? s.substring(colon + 1) : s.substring(colon + 1, slash));
+            int clientPort = slash < 0 ? -1 : Integer.parseInt(s.substring(slash + 1));
+            Peer p = new Peer(id, host, port, clientPort);
+            list.add(p);
+            byId.put(id, p);
+        }
+        list.sort(Comparator.comparingInt(p -> p.id));
+        this.nodes = list.toArray(new Peer[0]);
+        this.self = byId.get(selfId);
+        if (self == null) throw new IllegalArgumentException("chat.cluster.self=" + selfId + " is not in chat.cluster.nodes");
+    }
+
+    public void start() throws IOException {
+        ServerSocket ss = new ServerSocket();
+        ChatServer.reusePort(ss); // the next version starts its cluster listener before this node stops
+        ss.bind(new InetSocketAddress(self.port));
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket s = ss.accept();
+                    s.setTcpNoDelay(true);
+                    Thread t = new Thread(() -> serve(s), "cluster-in-" + s.getRemoteSocketAddress());
+                    t.setDaemon(true);
+                    t.start();
+                } catch (IOException e) {
+                    System.err.println("Cluster: accept failed: " + e.getMessage());
+                }
+            }
+        }, "cluster-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        System.out.println("Cluster: node " + self.id + " of " + nodes.length + ", cluster port " + self.port);
+        for (Peer p: nodes) {
+            if (p == self) continue;
+            p.link = new Link(p);
+            Thread t = new Thread(p.link, "cluster-out-" + p.id);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    // --- assignment
+
+    private Peer owner(String username) {
+        return nodes[Math.floorMod(username.hashCode(), nodes.length)];
+    }
+
+    // null if the user may log in here, else the node it belongs to
+    public String[] redirectFor(String username) {
+        if (!hashAssign) return null;
+        Peer p = owner(username);
+        return p == self ? null : new String[] { p.host, String.valueOf(p.clientPort) };
+    }
+
+    // --- lookups
+
+    public Integer remoteUserId(String username) {
+        Remote r = remoteByName.get(username);
+        return r == null ? null : r.userId;
+    }
+
+    public boolean isOnlineRemotely(String username) {
+        return remoteByName.containsKey(username);
+    }
+
+    public Set<String> remoteUsernames() {
+        return remoteByName.keySet();
+    }
+
+    // --- local events, sent to every peer
+
+    public void localOnline(int userId, String username) {
+        byte[] m = encode(USER_ONLINE, userId, username);
+        for (Peer p: nodes) if (p.link != null) p.link.send(m);
+    }
+
+    public void localOffline(int userId, String username) {
+        byte[] m = encode(USER_OFFLINE, userId, username);
+        for (Peer p: nodes) if (p.link != null) p.link.send(m);
+    }
+
+    // keeps the peers' group member caches current, which forwardGroup relies on
+    public void memberAdded(int gid, int userId) {
+        byte[] m = encode(GROUP_MEMBER, gid, userId);
+        for (Peer p: nodes) if (p.link != null) p.link.send(m);
+    }
+
+    // --- message forwarding
+
+    // True if the recipient is online on another node and the link to it took the message; from then on
+    // that node delivers or holds it. False means the caller holds it here.
+    public boolean forwardPrivate(String toUser, int fromId, String from, String content) {
+        Remote r = remoteByName.get(toUser);
+        if (r == null) return false;
+        Peer p = byId.get(r.node);
+        if (p == null || p.link == null || !p.link.up) return false;
+        if (!p.link.send(encode(PRIVATE, r.userId, fromId, from, content))) return false;
+        forwarded.incrementAndGet();
+        return true;
+    }
+
+    // to every node that has an online member of the group (all peers if the member list can't be loaded)
+    public void forwardGroup(int gid, String from, String content) {
+        boolean[] target = new boolean[nodes.length];
+        int count = 0;
+        try {
+            IntSet members = server.groups.members(gid);
+            for (int i = 0; i < members.size(); i++) {
+                Remote r = remoteById.get(members.get(i));
+                if (r == null) continue;
+                int idx = index(r.node);
+                if (idx >= 0 && !target[idx]) { target[idx] = true; count++; }
+            }
+        } catch (SQLException e) {
+            for (int i = 0; i < nodes.length; i++) if (nodes[i] != self) { target[i] = true; count++; }
+        }
+        if (count == 0) return;
+        byte[] m = encode(GROUP, gid, from, content);
+        for (int i = 0; i < nodes.length; i++) {
+            if (target[i] && nodes[i].link != null) { nodes[i].link.send(m); forwarded.incrementAndGet(); }
+        }
+    }
+
+    private int index(int nodeId) {
+        for (int i = 0; i < nodes.length; i++) if (nodes[i].id == nodeId) return i;
+        return -1;
+    }
+
+    // --- encoding
+
+    private static byte[] encode(byte type, int n, String... strings) {
+        return encode(type, new int[] { n }, strings);
+    }
+
+    private static byte[] encode(byte type, int a, int b, String... strings) {
+        return encode(type, new int[] { a, b }, strings);
+    }
+
+    private static byte[] encode(byte type, int[] ints, String[] strings) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bos);
+        try {
+            out.writeInt(0); // length, patched below
+            out.writeByte(type);
+            for (int n: ints) out.writeInt(n);
+            for (String s: strings) {
+                byte[] b = s.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(b.length);
+                out.write(b);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // ByteArrayOutputStream doesn't throw
+        }
+        return withLength(bos.toByteArray());
+    }
+
+    private static byte[] withLength(byte[] m) {
+        ByteBuffer.wrap(m).putInt(0, m.length - 4);
+        return m;
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0 || len > CommandParser.MAX_FRAME) throw new IOException("Bad string length " + len);
+        byte[] b = new byte[len];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    // --- incoming link from a peer
+
+    private void serve(Socket s) {
+        int node = -1;
+        Object via = new Object();
+        try (Socket sock = s) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(sock.getInputStream(), 65_536));
+            while (true) {
+                in.readInt(); // length; every type is parsed field by field
+                byte type = in.readByte();
+                int n = in.readInt();
+                if (type == HELLO) {
+                    node = n;
+                    System.out.println("Cluster: link from node " + node + " up");
+                    continue;
+                }
+                if (node < 0) throw new IOException("No HELLO");
+                received.incrementAndGet();
+                switch (type) {
+                    case USER_ONLINE: remoteOnline(new Remote(n, readString(in), node, via)); break;
+                    case USER_OFFLINE: remoteOffline(n, readString(in), via); break;
+                    case GROUP_MEMBER: server.groups.memberAdded(n, in.readInt()); break;
+                    case PRIVATE: {
+                        int fromId = in.readInt();
+                        String from = readString(in), content = readString(in);
+                        ClientHandler h = server.getById(n);
+                        if (h != null) {
+                            h.send(Op.INCOMING_PRIVATE, from, content);
+                        } else {
+                            // logged out after the sender's node looked them up
+                            Models.Message m = new Models.Message(fromId, n, null, content);
+                            m.fromUsername = from;
+                            server.pending.holdForwarded(m);
+                        }
+                        break;
+                    }
+                    case GROUP: {
+                        String from = readString(in), content = readString(in);
+                        server.fanout.group(server.groupMembers(n), Frame.of(Op.INCOMING_GROUP, String.valueOf(n), from, content), null);
+                        break;
+                    }
+                    default: throw new IOException("Unknown cluster message " + type);
+                }
+            }
+        } catch (IOException e) {
+            if (node >= 0) System.out.println("Cluster: link from node " + node + " down (" + (e instanceof EOFException ? "closed" : e.getMessage()) + ")");
+        } finally {
+            // everyone that link told us about is gone with it
+            for (Remote r: remoteByName.values()) if (r.via == via) remoteOffline(r.userId, r.username, via);
+        }
+    }
+
+    private void remoteOnline(Remote r) {
+        remoteByName.put(r.username, r);
+        remoteById.put(r.userId, r);
+        if (server.getByUsername(r.username) == null) server.presence.online(r.username);
+    }
+
+    private void remoteOffline(int userId, String username, Object via) {
+        Remote r = remoteByName.get(username);
+        if (r == null || r.via != via || !remoteByName.remove(username, r)) return; // already moved elsewhere
+        remoteById.remove(userId, r);
+        if (server.getByUsername(username) == null) server.presence.offline(username);
+    }
+
+    // --- outgoing link to a peer
+
+    final class Link implements Runnable {
+        private final Peer peer;
+        private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(QUEUE);
+        private volatile boolean up;
+
+        Link(Peer peer) { this.peer = peer; }
+
+        boolean send(byte[] m) {
+            if (queue.offer(m)) return true;
+            dropped.incrementAndGet();
+            return false;
+        }
+
+        @Override
+        public void run() {
+            long backoff = 100;
+            List<byte[]> batch = new ArrayList<>(BATCH);
+            while (true) {
+                try (Socket s = new Socket()) {
+                    s.connect(new InetSocketAddress(peer.host, peer.port), 2000);
+                    s.setTcpNoDelay(true);
+                    OutputStream out = new BufferedOutputStream(s.getOutputStream(), 65_536);
+                    out.write(encode(HELLO, self.id));
+                    // who is here right now; changes after this point are in the queue
+                    for (ClientHandler h: server.getOnlineHandlers()) {
+                        if (h.getUserId() != null) out.write(encode(USER_ONLINE, h.getUserId(), h.getUsername()));
+                    }
+                    out.flush();
+                    up = true;
+                    backoff = 100;
+                    System.out.println("Cluster: link to node " + peer.id + " up");
+                    while (true) {
+                        batch.add(queue.take());
+                        queue.drainTo(batch, BATCH - 1);
+                        for (byte[] m: batch) out.write(m);
+                        out.flush();
+                        batch.clear();
+                    }
+                } catch (IOException e) {
+                    if (up) System.out.println("Cluster: link to node " + peer.id + " down (" + e.getMessage() + ")");
+                    up = false;
+                    batch.clear();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try { Thread.sleep(backoff); } catch (InterruptedException e) { return; }
+                backoff = Math.min(backoff * 2, 5000);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        int up = 0;
+        for (Peer p: nodes) if (p.link != null && p.link.up) up++;
+        return String.format("cluster: node=%d links-up=%d/%d remote-users=%d forwarded=%d received=%d dropped=%d",
+                self.id, up, nodes.length - 1, remoteByName.size(), forwarded.get(), received.get(), dropped.get());
+    }
+}
+
+// ==========================
+// server/Op.java
+// ==========================
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Protocol commands. The name is the text-protocol keyword, the code is the binary opcode.
+public enum Op {
+    // client -> server
+    REGISTER(1), LOGIN(2), MSG(3), CREATE_GROUP(4), JOIN_GROUP(5), HISTORY_PRIVATE(6), HISTORY_GROUP(7),
+    GET_USERS(8), GET_ONLINE(9), LOGOUT(10), PROTO(11), ACK_PENDING(12), ACK(13), RESUME(14),
+    // server -> client
+    REGISTER_OK(64), REGISTER_FAIL(65), LOGIN_OK(66), LOGIN_FAIL(67), ERR(68),
+    INCOMING_PRIVATE(69), INCOMING_GROUP(70), CREATE_GROUP_OK(71), CREATE_GROUP_FAIL(72),
+    JOIN_GROUP_OK(73), JOIN_GROUP_FAIL(74),
+    HISTORY_PRIVATE_LINE(75), HISTORY_PRIVATE_END(76), HISTORY_PRIVATE_FAIL(77),
+    HISTORY_GROUP_LINE(78), HISTORY_GROUP_END(79), HISTORY_GROUP_FAIL(80),
+    USER(81), USER_MORE(82), USER_END(83), USER_FAIL(84),
+    ONLINE(85), OFFLINE(86), ONLINE_END(87), PROTO_OK(88), REDIRECT(89),
+    PENDING(90), PENDING_END(91), INCOMING_PRIVATE_SEQ(92), INCOMING_GROUP_SEQ(93), SENT(94),
+    RESUME_MORE(95), RESUME_END(96), RECONNECT(97);
+
+    public final int code;
+    private final byte[] nameBytes = name().getBytes(StandardCharsets.US_ASCII);
+
+    private static final Op[] BY_CODE = new Op[256];
+    private static final Map<String, Op> BY_NAME = new HashMap<>();
+    private static final Op[][] BY_LENGTH = new Op[32][0];
+    static {
+        for (Op op: values()) {
+            BY_CODE[op.code] = op;
+            BY_NAME.put(op.name(), op);
+            Op[] same = BY_LENGTH[op.nameBytes.length];
+            same = Arrays.copyOf(same, same.length + 1);
+            same[same.length - 1] = op;
+            BY_LENGTH[op.nameBytes.length] = same;
+        }
+    }
+
+    Op(int code) { this.code = code; }
+
+    public static Op byCode(int code) { return code >= 0 && code < 256 ? BY_CODE[code] : null; }
+
+    public static Op byName(String name) { return BY_NAME.get(name); }
+
+    // text command name in b[off, off+len), compared byte by byte so no String is created
+    public static Op lookup(byte[] b, int off, int len) {
+        if (len <= 0 || len >= BY_LENGTH.length) return null;
+        for (Op op: BY_LENGTH[len]) {
+            byte[] n = op.nameBytes;
+            int i = 0;
+            while (i < len && n[i] == b[off + i]) i++;
+            if (i == len) return op;
+        }
+        return null;
+    }
+}
+
+// ==========================
+// server/Frame.java
+// ==========================
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/*
+ An outgoing message. Immutable; the text and binary encodings are produced on first use and
+ cached, so a frame sent to many connections is encoded at most once per wire format. Connections
+ queue it as a SharedBuffer, so a broadcast also occupies one buffer however many queues hold it.
+ Text:   NAME|field1|field2...\n
+ Binary: int32 length (of what follows), u8 opcode, then per field int32 length + UTF-8 bytes
+ A batch (Frame.batch) is several frames encoded back to back: the bytes on the wire are the same as
+ sending them one by one, but they take one outbound queue entry.
+*/
+public final class Frame {
+    final Op op;
+    final String[] fields;
+    private final Frame[] parts; // non-null for a batch
+    private volatile byte[] text;
+    private volatile byte[] binary;
+    private volatile SharedBuffer textShared;
+    private volatile SharedBuffer binaryShared;
+    private volatile boolean pinned;
+    private SharedBuffer textPin, binaryPin; // the frame's own references while pinned; guarded by this
+
+    private Frame(Op op, String[] fields, Frame[] parts) {
+        this.op = op;
+        this.fields = fields;
+        this.parts = parts;
+    }
+
+    public static Frame of(Op op, String... fields) { return new Frame(op, fields, null); }
+
+    public static Frame batch(List<Frame> frames) { return new Frame(null, null, frames.toArray(new Frame[0])); }
+
+    public byte[] encode(boolean binaryWire) {
+        if (binaryWire) {
+            byte[] b = binary;
+            if (b == null) binary = b = parts != null ? concat(true) : encodeBinary();
+            return b;
+        }
+        byte[] t = text;
+        if (t == null) text = t = parts != null ? concat(false) : encodeText();
+        return t;
+    }
+
+    // The encoding in a SharedBuffer, with one reference for the caller. Reused while some queue still
+    // holds it (or the frame is pinned); otherwise the caller gets a fresh copy.
+    SharedBuffer shared(boolean binaryWire) {
+        SharedBuffer sb = binaryWire ? binaryShared : textShared;
+        if (sb != null && sb.retain()) return sb;
+        synchronized (this) {
+            sb = binaryWire ? binaryShared : textShared;
+            if (sb != null && sb.retain()) return sb;
+            sb = SharedBuffer.of(encode(binaryWire));
+            if (pinned) {
+                sb.retain();
+                if (binaryWire) binaryPin = sb; else textPin = sb;
+            }
+            if (binaryWire) binaryShared = sb; else textShared = sb;
+            return sb;
+        }
+    }
+
+    // Broadcasts pin the frame before the first send and unpin it after the last, so its buffers can't
+    // go back to the pool between two recipients (which would cost the next one a fresh copy).
+    void pin() { pinned = true; }
+
+    synchronized void unpin() {
+        pinned = false;
+        if (textPin != null) { textPin.release(); textPin = null; }
+        if (binaryPin != null) { binaryPin.release(); binaryPin = null; }
+    }
+
+    private byte[] concat(boolean binaryWire) {
+        int len = 0;
+        for (Frame f: parts) len += f.encode(binaryWire).length;
+        ByteBuffer b = ByteBuffer.allocate(len);
+        for (Frame f: parts) b.put(f.encode(binaryWire));
+        return b.array();
+    }
+
+    private byte[] encodeText() {
+        StringBuilder sb = new StringBuilder(op.name());
+        for (String f: fields) sb.append('|').append(f);
+        sb.append('\n');
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] encodeBinary() {
+        byte[][] enc = new byte[fields.length][];
+        int len = 1;
+        for (int i = 0; i < fields.length; i++) {
+            enc[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+            len += 4 + enc[i].length;
+        }
+        ByteBuffer b = ByteBuffer.allocate(4 + len);
+        b.putInt(len).put((byte) op.code);
+        for (byte[] f: enc) b.putInt(f.length).put(f);
+        return b.array();
+    }
+}
+
+// ==========================
+// server/SharedBuffer.java
+// ==========================
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ An encoded frame in a pooled direct buffer, shared by all outbound queues it is in. Reference counted:
+ every queue entry owns one reference and releases it once the bytes are written, dropped, replaced or
+ the connection closes; the last release returns the buffer to its pool. A count that reached zero stays
+ there (retain() fails), so a released buffer is never handed out again through an old Frame.
+ Pooled buffers are 256 B - 16 KB slices of 1 MB direct chunks, at most -Dchat.out.poolMB (64) of them;
+ larger frames, and any frame once the pool is used up, get an unpooled heap buffer instead.
+ Direct buffers go to a SocketChannel without the JDK copying them into a temporary buffer first.
+*/
+final class SharedBuffer {
+    private static final int[] SIZES = { 256, 1024, 4096, 16384 };
+    private static final int CHUNK = 1 << 20;
+    private static final long LIMIT = Integer.getInteger("chat.out.poolMB", 64) * 1024L * 1024L;
+
+    private static final List<ConcurrentLinkedQueue<ByteBuffer>> free = new ArrayList<>(SIZES.length); // per size class
+    static {
+        for (int i = 0; i < SIZES.length; i++) free.add(new ConcurrentLinkedQueue<>());
+    }
+    private static ByteBuffer chunk; // being carved up; guarded by SharedBuffer.class
+    private static long chunkBytes; // guarded by SharedBuffer.class
+    private static final AtomicLong inUse = new AtomicLong();
+    private static final AtomicLong unpooled = new AtomicLong();
+
+    private final ByteBuffer data; // position 0, limit = frame length; never moved, readers use view()
+    private final int sizeClass; // -1 = not pooled
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    private SharedBuffer(ByteBuffer data, int sizeClass) {
+        this.data = data;
+        this.sizeClass = sizeClass;
+    }
+
+    static SharedBuffer of(byte[] encoded) {
+        int c = 0;
+        while (c < SIZES.length && SIZES[c] < encoded.length) c++;
+        ByteBuffer b = c < SIZES.length ? take(c) : null;
+        if (b == null) {
+            unpooled.incrementAndGet();
+            return new SharedBuffer(ByteBuffer.wrap(encoded), -1);
+        }
+        inUse.incrementAndGet();
+        b.clear();
+        b.put(encoded).flip();
+        return new SharedBuffer(b, c);
+    }
+
+    private static ByteBuffer take(int c) {
+        ByteBuffer b = free.get(c).poll();
+        if (b != null) return b;
+        synchronized (SharedBuffer.class) {
+            if (chunk == null || chunk.remaining() < SIZES[c]) {
+                if (chunkBytes + CHUNK > LIMIT) return null;
+                chunk = ByteBuffer.allocateDirect(CHUNK);
+                chunkBytes += CHUNK;
+            }
+            b = chunk.slice(chunk.position(), SIZES[c]);
+            chunk.position(chunk.position() + SIZES[c]);
+            return b;
+        }
+    }
+
+    // another reference, unless the last one is already gone
+    boolean retain() {
+        while (true) {
+            int r = refs.get();
+            if (r <= 0) return false;
+            if (refs.compareAndSet(r, r + 1)) return true;
+        }
+    }
+
+    void release() {
+        if (refs.decrementAndGet() != 0 || sizeClass < 0) return;
+        inUse.decrementAndGet();
+        free.get(sizeClass).offer(data);
+    }
+
+    // the frame bytes with a position of their own, for one write
+    ByteBuffer view() { return data.duplicate(); }
+
+    static String stats() {
+        long pooled;
+        synchronized (SharedBuffer.class) { pooled = chunkBytes; }
+        return String.format("frame buffers: pooled=%dKB in-use=%d unpooled=%d", pooled / 1024, inUse.get(), unpooled.get());
+    }
+}
+
+// ==========================
+// server/CommandParser.java
+// ==========================
+package server;
+
+import java.nio.charset.StandardCharsets;
+
+/*
+ Tokenizes one incoming command in place: a text line (NAME|a|rest) or a binary frame body
+ (opcode byte, then int32-length-prefixed fields). Arguments are kept as offsets into the
+ caller's buffer and only decoded when a handler asks, so parsing and dispatch allocate nothing.
+ One instance per connection; valid until the next parse call.
+
+ Text lines split like line.split("\\|", 3) always did: first argument up to the next '|',
+ second argument is the rest. REGISTER/LOGIN's user::pass becomes two arguments, as in binary.
+ HISTORY_* cursors (name|beforeId|limit) carry no free text, so their rest is split once more;
+ so is GET_USERS's (cursor|limit|prefix).
+*/
+public final class CommandParser {
+    public static final int MAX_FRAME = 1 << 20;
+    private static final int MAX_ARGS = 8;
+
+    private byte[] buf;
+    private Op op;
+    private int argc;
+    private final int[] start = new int[MAX_ARGS];
+    private final int[] end = new int[MAX_ARGS];
+
+    // last decoded name (e.g. message recipient); repeated messages to the same user reuse the String
+    private byte[] lastName = new byte[64];
+    private int lastNameLen = -1;
+    private String lastNameStr;
+
+    public Op op() { return op; }
+
+    public int argc() { return argc; }
+
+    // Returns false (op() == null) for an unknown command, which callers ignore.
+    public boolean parseText(byte[] b, int off, int len) {
+        buf = b;
+        argc = 0;
+        int stop = off + len;
+        int bar = indexOf(b, off, stop, (byte) '|');
+        op = Op.lookup(b, off, (bar < 0 ? stop : bar) - off);
+        if (op == null || bar < 0) return op != null;
+        int p = bar + 1;
+        int next = indexOf(b, p, stop, (byte) '|');
+        if (next < 0) {
+            add(p, stop);
+        } else {
+            add(p, next);
+            add(next + 1, stop);
+        }
+        if ((op == Op.HISTORY_PRIVATE || op == Op.HISTORY_GROUP || op == Op.GET_USERS) && argc == 2) {
+            int e = end[1];
+            int bar2 = indexOf(b, start[1], e, (byte) '|');
+            if (bar2 >= 0) {
+                end[1] = bar2;
+                add(bar2 + 1, e);
+            }
+        }
+        if ((op == Op.REGISTER || op == Op.LOGIN) && argc >= 1) {
+            int s = start[0], e = end[0];
+            for (int i = s; i + 1 < e; i++) {
+                if (b[i] == ':' && b[i + 1] == ':') {
+                    argc = 0;
+                    add(s, i);
+                    add(i + 2, e);
+                    break;
+                }
+            }
+        }
+        return true;
+    }
+
+    // b[off] is the opcode, followed by the fields; len excludes the int32 frame length.
+    public boolean parseBinary(byte[] b, int off, int len) {
+        buf = b;
+        argc = 0;
+        op = Op.byCode(b[off] & 0xff);
+        int stop = off + len;
+        int p = off + 1;
+        while (p < stop) {
+            if (p + 4 > stop || argc == MAX_ARGS) throw new IllegalArgumentException("Malformed frame");
+            int flen = ((b[p] & 0xff) << 24) | ((b[p + 1] & 0xff) << 16) | ((b[p + 2] & 0xff) << 8) | (b[p + 3] & 0xff);
+            if (flen < 0 || p + 4 + flen > stop) throw new IllegalArgumentException("Malformed frame");
+            add(p + 4, p + 4 + flen);
+            p += 4 + flen;
+        }
+        return op != null;
+    }
+
+    private void add(int s, int e) {
+        start[argc] = s;
+        end[argc] = e;
+        argc++;
+    }
+
+    private static int indexOf(byte[] b, int from, int to, byte c) {
+        for (int i = from; i < to; i++) if (b[i] == c) return i;
+        return -1;
+    }
+
+    private void check(int i) {
+        if (i >= argc) throw new IllegalArgumentException("Missing argument " + i + " for " + op);
+    }
+
+    public String str(int i) {
+        check(i);
+        return new String(buf, start[i], end[i] - start[i], StandardCharsets.UTF_8);
+    }
+
+    public boolean startsWith(int i, byte[] prefix) {
+        check(i);
+        if (end[i] - start[i] < prefix.length) return false;
+        for (int k = 0; k < prefix.length; k++) if (buf[start[i] + k] != prefix[k]) return false;
+        return true;
+    }
+
+    // true if argument i is missing or empty (optional arguments like a history cursor)
+    public boolean isEmpty(int i) {
+        return i >= argc || end[i] == start[i];
+    }
+
+    // decimal long from argument i, skipping the first `skip` bytes
+    public long longArg(int i, int skip) {
+        check(i);
+        int p = start[i] + skip, e = end[i];
+        boolean neg = p < e && buf[p] == '-';
+        if (neg) p++;
+        if (p >= e || e - p > 18) throw new NumberFormatException("Bad number for " + op);
+        long v = 0;
+        for (; p < e; p++) {
+            int d = buf[p] - '0';
+            if (d < 0 || d > 9) throw new NumberFormatException("Bad number for " + op);
+            v = v * 10 + d;
+        }
+        return neg ? -v : v;
+    }
+
+    public long longArg(int i) { return longArg(i, 0); }
+
+    public int intArg(int i, int skip) {
+        long v = longArg(i, skip);
+        if (v > Integer.MAX_VALUE || v < Integer.MIN_VALUE) throw new NumberFormatException("Bad number for " + op);
+        return (int) v;
+    }
+
+    public int intArg(int i) { return intArg(i, 0); }
+
+    // String of argument i after `skip` bytes, reusing the previous result when the bytes are the same
+    public String name(int i, int skip) {
+        check(i);
+        int s = start[i] + skip, n = end[i] - s;
+        if (n == lastNameLen) {
+            boolean same = true;
+            for (int k = 0; k < n && same; k++) same = lastName[k] == buf[s + k];
+            if (same) return lastNameStr;
+        }
+        if (n > lastName.length) lastName = new byte[Math.max(n, lastName.length * 2)];
+        System.arraycopy(buf, s, lastName, 0, n);
+        lastNameLen = n;
+        lastNameStr = new String(buf, s, n, StandardCharsets.UTF_8);
+        return lastNameStr;
+    }
+}
+
+// ==========================
+// server/InputBuffer.java
+// ==========================
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+// Per-connection reader for the blocking transports: reads the socket in chunks and exposes the
+// current line or frame body as data[0, len), reusing the same arrays for every message.
+public final class InputBuffer {
+    private final InputStream in;
+    private final byte[] chunk = new byte[8192];
+    private int pos = 0, lim = 0;
+    public byte[] data = new byte[256];
+    public int len;
+
+    public InputBuffer(InputStream in) { this.in = in; }
+
+    private boolean fill() throws IOException {
+        int n = in.read(chunk, 0, chunk.length);
+        if (n <= 0) return false;
+        pos = 0; lim = n;
+        return true;
+    }
+
+    private void append(int from, int n) throws IOException {
+        if (len + n > CommandParser.MAX_FRAME) throw new IOException("Line too long");
+        if (len + n > data.length) data = java.util.Arrays.copyOf(data, Math.max(len + n, data.length * 2));
+        System.arraycopy(chunk, from, data, len, n);
+        len += n;
+    }
+
+    // next '\n' terminated line without the terminator (or '\r\n'); false at end of stream
+    public boolean readLine() throws IOException {
+        len = 0;
+        while (true) {
+            if (pos == lim && !fill()) return len > 0;
+            int i = pos;
+            while (i < lim && chunk[i] != '\n') i++;
+            append(pos, i - pos);
+            if (i < lim) {
+                pos = i + 1;
+                if (len > 0 && data[len - 1] == '\r') len--;
+                return true;
+            }
+            pos = lim;
+        }
+    }
+
+    // next binary frame body (opcode + fields); false at a clean end of stream
+    public boolean readFrame() throws IOException {
+        len = 0;
+        int frameLen = 0;
+        for (int k = 0; k < 4; k++) {
+            if (pos == lim && !fill()) {
+                if (k == 0) return false;
+                throw new IOException("Truncated frame");
+            }
+            frameLen = (frameLen << 8) | (chunk[pos++] & 0xff);
+        }
+        if (frameLen < 1 || frameLen > CommandParser.MAX_FRAME) throw new IOException("Bad frame length " + frameLen);
+        while (len < frameLen) {
+            if (pos == lim && !fill()) throw new IOException("Truncated frame");
+            int n = Math.min(frameLen - len, lim - pos);
+            append(pos, n);
+            pos += n;
+        }
+        return true;
+    }
+}
+
+// ==========================
+// server/ClientConnection.java
+// ==========================
+package server;
+
+// Transport behind a ClientHandler: blocking socket or NIO channel.
+// send() never blocks: frames go to the connection's OutboundQueue and its own writer drains it.
+public interface ClientConnection {
+    // frames with the same coalesceKey may replace each other when the queue overflows (see OutboundQueue)
+    void send(Frame f, String coalesceKey);
+    // text lines (default) or binary frames; switched once, right after PROTO|BIN is acknowledged
+    boolean isBinary();
+    void setBinary(boolean binary);
+    void close();
+    OutboundQueue outbound();
+}
+
+// ==========================
+// server/OutboundQueue.java
+// ==========================
+package server;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ Bounded per-connection queue of encoded outgoing frames. Whoever delivers a message only enqueues, so a
+ slow or stalled client can never block the sender. The queue owns one reference of each SharedBuffer
+ offered to it and releases it on drop, replacement and close; poll/drainTo pass it on to the writer. What happens when the queue is full is set by
+ -Dchat.out.overflow:
+   DROP       - the new frame is discarded
+   DISCONNECT - the slow client is disconnected (it will reconnect and catch up from history)
+   COALESCE   - a queued frame with the same coalesce key is replaced by the new one; if there is
+                none the client is disconnected (default)
+ Long replies to the client's own commands (GET_ONLINE, GET_USERS without paging) don't count on the
+ capacity: they send only while hasRoom() and otherwise wait for whenRoom(), i.e. at the pace the
+ client reads, and leave the other half of the queue to live traffic.
+ Uses a ReentrantLock rather than synchronized/wait so blocked writers don't pin virtual threads.
+*/
+public class OutboundQueue {
+    public enum Overflow { DROP, DISCONNECT, COALESCE }
+
+    static final int CAPACITY = Integer.getInteger("chat.out.capacity", 1024);
+    static final Overflow POLICY = Overflow.valueOf(System.getProperty("chat.out.overflow", "COALESCE").toUpperCase());
+
+    // totals across all connections, for the stats line
+    static final AtomicLong dropped = new AtomicLong();
+    static final AtomicLong coalesced = new AtomicLong();
+    static final AtomicLong slowDisconnects = new AtomicLong();
+
+    private static final class Entry {
+        SharedBuffer data;
+        final String key;
+        Entry(SharedBuffer data, String key) { this.data = data; this.key = key; }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private final int capacity;
+    private final int half; // hasRoom() below this
+    private final Overflow policy;
+    private int highWater = 0;
+    private boolean closed = false;
+    private CompletableFuture<Void> room; // whenRoom() callers, completed once the queue is down to half
+
+    public OutboundQueue() { this(CAPACITY, POLICY); }
+
+    public OutboundQueue(int capacity, Overflow policy) {
+        this.capacity = capacity;
+        this.half = Math.max(1, capacity / 2);
+        this.policy = policy;
+    }
+
+    // Returns false when the connection should be dropped as a slow consumer.
+    public boolean offer(SharedBuffer data, String coalesceKey) {
+        lock.lock();
+        try {
+            if (closed) { data.release(); return true; }
+            if (entries.size() >= capacity) {
+                if (policy == Overflow.DROP) {
+                    dropped.incrementAndGet();
+                    data.release();
+                    return true;
+                }
+                if (policy == Overflow.COALESCE && coalesceKey != null && replace(data, coalesceKey)) {
+                    coalesced.incrementAndGet();
+                    return true;
+                }
+                // DISCONNECT, or nothing to coalesce with
+                slowDisconnects.incrementAndGet();
+                data.release();
+                return false;
+            }
+            entries.addLast(new Entry(data, coalesceKey));
+            if (entries.size() > highWater) highWater = entries.size();
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean replace(SharedBuffer data, String key) {
+        for (Iterator<Entry> it = entries.descendingIterator(); it.hasNext(); ) {
+            Entry e = it.next();
+            if (key.equals(e.key)) {
+                e.data.release();
+                e.data = data;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public SharedBuffer poll() {
+        CompletableFuture<Void> r;
+        SharedBuffer sb;
+        lock.lock();
+        try {
+            Entry e = entries.pollFirst();
+            sb = e == null ? null : e.data;
+            r = roomMade();
+        } finally {
+            lock.unlock();
+        }
+        if (r != null) r.complete(null);
+        return sb;
+    }
+
+    // Blocks until at least one frame is queued, then moves up to max frames into out.
+    // Returns false once the queue is closed and empty.
+    public boolean drainTo(List<SharedBuffer> out, int max) throws InterruptedException {
+        CompletableFuture<Void> r;
+        lock.lock();
+        try {
+            while (entries.isEmpty()) {
+                if (closed) return false;
+                notEmpty.await(1, TimeUnit.SECONDS);
+            }
+            for (int i = 0; i < max && !entries.isEmpty(); i++) out.add(entries.pollFirst().data);
+            r = roomMade();
+        } finally {
+            lock.unlock();
+        }
+        if (r != null) r.complete(null); // outside the lock: whoever waits may offer right away
+        return true;
+    }
+
+    // true while the queue is less than half full: a long reply may send its next frame
+    public boolean hasRoom() {
+        lock.lock();
+        try { return closed || entries.size() < half; } finally { lock.unlock(); }
+    }
+
+    // completes once hasRoom() holds again (at once if it does now, or the queue is closed)
+    public CompletableFuture<Void> whenRoom() {
+        lock.lock();
+        try {
+            if (closed || entries.size() < half) return CompletableFuture.completedFuture(null);
+            if (room == null) room = new CompletableFuture<>();
+            return room;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // lock held: the whenRoom() future to complete (after unlocking) if the queue is below half now
+    private CompletableFuture<Void> roomMade() {
+        CompletableFuture<Void> r = room;
+        if (r == null || entries.size() >= half) return null;
+        room = null;
+        return r;
+    }
+
+    public void close() {
+        CompletableFuture<Void> r;
+        lock.lock();
+        try {
+            closed = true;
+            for (Entry e: entries) e.data.release();
+            entries.clear();
+            notEmpty.signalAll();
+            r = room;
+            room = null;
+        } finally {
+            lock.unlock();
+        }
+        if (r != null) r.complete(null);
+    }
+
+    public int depth() {
+        lock.lock();
+        try { return entries.size(); } finally { lock.unlock(); }
+    }
+
+    public int highWater() {
+        lock.lock();
+        try { return highWater; } finally { lock.unlock(); }
+    }
+}
+
+// ==========================
+// server/SocketConnection.java
+// ==========================
+package server;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+// Blocking socket transport. A writer thread per connection (virtual in -Dchat.io=virtual mode, a platform
+// daemon thread otherwise) drains the outbound queue, copying as many queued frames as are available into
+// its write buffer before each socket write (streams can't take the shared ByteBuffers directly).
+public class SocketConnection implements ClientConnection {
+    private final Socket socket;
+    private final OutputStream out;
+    private final OutboundQueue queue = new OutboundQueue();
+    private volatile boolean binary = false;
+
+    public SocketConnection(Socket socket, boolean virtualWriter) throws IOException {
+        this.socket = socket;
+        this.out = socket.getOutputStream();
+        String name = "writer-" + socket.getRemoteSocketAddress();
+        if (virtualWriter) {
+            Thread.ofVirtual().name(name).start(this::writeLoop);
+        } else {
+            Thread t = new Thread(this::writeLoop, name);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    @Override
+    public void send(Frame f, String coalesceKey) {
+        if (!queue.offer(f.shared(binary), coalesceKey)) close(); // the reader then sees the closed socket and cleans up
+    }
+
+    @Override
+    public boolean isBinary() { return binary; }
+
+    @Override
+    public void setBinary(boolean binary) { this.binary = binary; }
+
+    private void writeLoop() {
+        List<SharedBuffer> batch = new ArrayList<>();
+        byte[] buf = new byte[8192];
+        try {
+            while (queue.drainTo(batch, 256)) {
+                int n = 0;
+                try {
+                    for (SharedBuffer sb: batch) {
+                        ByteBuffer v = sb.view();
+                        while (v.hasRemaining()) {
+                            if (n == buf.length) { out.write(buf, 0, n); n = 0; }
+                            int k = Math.min(v.remaining(), buf.length - n);
+                            v.get(buf, n, k);
+                            n += k;
+                        }
+                    }
+                    out.write(buf, 0, n);
+                } finally {
+                    for (SharedBuffer sb: batch) sb.release();
+                    batch.clear();
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            close();
+        }
+    }
+
+    @Override
+    public OutboundQueue outbound() { return queue; }
+
+    @Override
+    public void close() {
+        queue.close();
+        try { socket.close(); } catch (IOException ignored) {}
+    }
+}
+
+// ==========================
+// server/NioServer.java
+// ==========================
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ Non-blocking engine: a few selector threads own all sockets and do the reads/writes,
+ complete lines/frames are handed to a fixed worker pool (DB calls block, so they must not run
+ on a selector thread). Input of one connection is always processed in order, one at a time.
+ Wire protocol is the same as the blocking mode (text lines, binary frames after PROTO|BIN).
+*/
+public class NioServer {
+    private final ChatServer server;
+    private final int port;
+    private final IoLoop[] loops;
+    private final ExecutorService workers;
+    private ServerSocketChannel acceptor;
+    private int nextLoop = 0;
+
+    public NioServer(ChatServer server, int port, int ioThreads, int workerThreads) throws IOException {
+        this.server = server;
+        this.port = port;
+        this.loops = new IoLoop[ioThreads];
+        for (int i = 0; i < ioThreads; i++) loops[i] = new IoLoop("chat-io-" + i);
+        this.workers = Executors.newFixedThreadPool(workerThreads);
+    }
+
+    public void start() throws IOException {
+        ServerSocketChannel ssc = ServerSocketChannel.open();
+        ChatServer.reusePort(ssc);
+        ssc.bind(new InetSocketAddress(port), 1024);
+        ssc.configureBlocking(false);
+        acceptor = ssc;
+        loops[0].registerAcceptor(ssc);
+        for (IoLoop l: loops) l.thread.start();
+        System.out.println("ChatServer (nio, " + loops.length + " io threads) listening on port " + port);
+    }
+
+    // ChatServer.drain(): connections already accepted stay open
+    public void stopAccepting() throws IOException {
+        if (acceptor != null) acceptor.close();
+    }
+
+    private void accepted(SocketChannel ch) {
+        try {
+            ch.configureBlocking(false);
+            ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            IoLoop l = loops[nextLoop++ % loops.length]; // only the acceptor loop thread gets here
+            l.register(ch);
+        } catch (IOException e) {
+            try { ch.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    final class IoLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+        private final Queue<NioConnection> pendingWrites = new ConcurrentLinkedQueue<>();
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        IoLoop(String name) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, name);
+        }
+
+        void registerAcceptor(ServerSocketChannel ssc) throws IOException {
+            ssc.register(selector, SelectionKey.OP_ACCEPT);
+        }
+
+        void register(SocketChannel ch) {
+            newChannels.add(ch);
+            selector.wakeup();
+        }
+
+        void wantWrite(NioConnection c) {
+            pendingWrites.add(c);
+            selector.wakeup();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    SocketChannel ch;
+                    while ((ch = newChannels.poll()) != null) {
+                        NioConnection c = new NioConnection(ch, this);
+                        c.key = ch.register(selector, SelectionKey.OP_READ, c);
+                    }
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) task.run();
+                    NioConnection w;
+                    while ((w = pendingWrites.poll()) != null) w.flush();
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey k = it.next(); it.remove();
+                        if (!k.isValid()) continue;
+                        if (k.isAcceptable()) {
+                            SocketChannel s;
+                            while ((s = ((ServerSocketChannel) k.channel()).accept()) != null) accepted(s);
+                            continue;
+                        }
+                        NioConnection c = (NioConnection) k.attachment();
+                        if (k.isReadable()) c.read();
+                        if (k.isValid() && k.isWritable()) c.flush();
+                    }
+                } catch (CancelledKeyException e) {
+                    // a connection closed from a worker thread while we were using its key; nothing to do
+                } catch (IOException e) {
+                    System.err.println("IO loop error: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // one decoded line/frame body waiting for the worker; slots are reused, never handed out
+    static final class Packet {
+        byte[] data;
+        int len;
+        boolean binary;
+        boolean proto; // a PROTO line: decoding is paused until it has been answered
+    }
+
+    final class NioConnection implements ClientConnection {
+        private static final int RING = 16; // power of two
+        private static final int MASK = RING - 1;
+        private static final int KEEP_SLOT = 64 * 1024; // larger slot arrays are dropped after use
+        private static final byte[] PROTO_PREFIX = "PROTO|".getBytes(StandardCharsets.US_ASCII);
+
+        private final SocketChannel ch;
+        private final IoLoop loop;
+        private final ClientHandler handler;
+        SelectionKey key;
+
+        // read side, touched only by the loop thread. Unconsumed bytes stay in readBuf,
+        // complete lines/frames are decoded straight into the next ring slot.
+        private final ByteBuffer readBuf = ByteBuffer.allocate(8192);
+        private boolean binaryIn = false;
+        private boolean claimed = false; // slot at tail is being filled
+        private int header = 0, headerLen = 0; // binary length prefix read so far
+        // after a PROTO line we stop decoding until a worker has answered it, because the bytes
+        // that follow are text or binary depending on that answer
+        private boolean paused = false;
+
+        // single-producer (loop) / single-consumer (worker) ring of decoded input, one worker at a time
+        private final Packet[] ring = new Packet[RING];
+        private volatile long head = 0, tail = 0;
+        private final AtomicBoolean stalled = new AtomicBoolean(); // loop stopped reading on a full ring
+        private volatile boolean eof = false;
+        private final AtomicBoolean processing = new AtomicBoolean();
+        private final Runnable processTask = this::process;
+        private final Runnable resumeTask = this::resume;
+        private final Runnable parkedTask = this::continueParked;
+
+        // write side: any thread enqueues encoded frames, the loop thread writes up to GATHER of them per
+        // write call straight from their shared buffers
+        private static final int GATHER = 64;
+        private final OutboundQueue outbound = new OutboundQueue();
+        private final SharedBuffer[] writing = new SharedBuffer[GATHER]; // taken from the queue, loop thread only
+        private final ByteBuffer[] views = new ByteBuffer[GATHER];
+        private int written = 0, taken = 0; // writing[written, taken) still has bytes to send
+        private final AtomicBoolean writeScheduled = new AtomicBoolean();
+        private volatile boolean binaryOut = false;
+        private volatile boolean closed = false;
+
+        NioConnection(SocketChannel ch, IoLoop loop) {
+            this.ch = ch;
+            this.loop = loop;
+            this.handler = new ClientHandler(this, server);
+            for (int i = 0; i < RING; i++) ring[i] = new Packet();
+        }
+
+        void read() {
+            int n;
+            try {
+                n = ch.read(readBuf);
+            } catch (IOException e) { n = -1; }
+            if (n < 0) { eof(); return; }
+            decode();
+        }
+
+        private void decode() {
+            readBuf.flip();
+            boolean full = false;
+            try {
+                while (readBuf.hasRemaining() && !paused) {
+                    if (!claimed && !(claimed = claim())) { full = true; break; }
+                    Packet p = ring[(int) tail & MASK];
+                    if (binaryIn ? decodeBinary(p) : decodeText(p)) {
+                        claimed = false;
+                        tail = tail + 1; // publish to the worker
+                    }
+                }
+            } catch (IOException e) {
+                readBuf.clear();
+                eof();
+                return;
+            }
+            readBuf.compact();
+            if (paused || full) key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            schedule();
+        }
+
+        // Takes the slot at tail if the worker is done with it. Otherwise flags the stall so the
+        // worker resumes us once it frees a slot; the recheck covers a slot freed in between.
+        private boolean claim() {
+            if (tail - head >= RING) {
+                stalled.set(true);
+                if (tail - head >= RING || !stalled.compareAndSet(true, false)) return false;
+            }
+            Packet p = ring[(int) tail & MASK];
+            if (p.data == null || p.data.length > KEEP_SLOT) p.data = new byte[256];
+            p.len = 0;
+            return true;
+        }
+
+        private boolean decodeText(Packet p) throws IOException {
+            byte[] src = readBuf.array();
+            int from = readBuf.position(), lim = readBuf.limit(), i = from;
+            while (i < lim && src[i] != '\n') i++;
+            append(p, src, from, i - from);
+            if (i == lim) { readBuf.position(lim); return false; }
+            readBuf.position(i + 1);
+            if (p.len > 0 && p.data[p.len - 1] == '\r') p.len--;
+            p.binary = false;
+            p.proto = startsWith(p, PROTO_PREFIX);
+            if (p.proto) paused = true;
+            return true;
+        }
+
+        private boolean decodeBinary(Packet p) throws IOException {
+            while (headerLen < 4) {
+                if (!readBuf.hasRemaining()) return false;
+                header = (header << 8) | (readBuf.get() & 0xff);
+                headerLen++;
+            }
+            if (header < 1 || header > CommandParser.MAX_FRAME) throw new IOException("Bad frame length " + header);
+            int n = Math.min(header - p.len, readBuf.remaining());
+            append(p, readBuf.array(), readBuf.position(), n);
+            readBuf.position(readBuf.position() + n);
+            if (p.len < header) return false;
+            header = 0;
+            headerLen = 0;
+            p.binary = true;
+            p.proto = false;
+            return true;
+        }
+
+        private void append(Packet p, byte[] src, int from, int n) throws IOException {
+            int need = p.len + n;
+            if (need > CommandParser.MAX_FRAME) throw new IOException("Frame too long");
+            if (need > p.data.length) p.data = java.util.Arrays.copyOf(p.data, Math.min(Math.max(need, p.data.length * 2), CommandParser.MAX_FRAME));
+            System.arraycopy(src, from, p.data, p.len, n);
+            p.len = need;
+        }
+
+        private static boolean startsWith(Packet p, byte[] prefix) {
+            if (p.len < prefix.length) return false;
+            for (int i = 0; i < prefix.length; i++) if (p.data[i] != prefix[i]) return false;
+            return true;
+        }
+
+        // loop thread, once the PROTO line has been handled or the worker has freed ring slots
+        void resume() {
+            if (!key.isValid()) return;
+            binaryIn = binaryOut;
+            paused = false;
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            decode();
+        }
+
+        private void eof() {
+            key.cancel();
+            eof = true;
+            // nothing more gets written once the key is cancelled; closing the queue also wakes a command
+            // parked on its whenRoom()
+            outbound.close();
+            schedule();
+        }
+
+        private void schedule() {
+            if ((tail != head || (eof && !closed)) && processing.compareAndSet(false, true)) workers.execute(processTask);
+        }
+
+        private void process() {
+            long h = head;
+            while (h != tail) {
+                Packet p = ring[(int) h & MASK];
+                boolean keep = true;
+                if (!closed) {
+                    try {
+                        keep = handler.handle(p.data, 0, p.len, p.binary);
+                    } catch (Exception e) {
+                        System.err.println("Client handler error: " + e.getMessage());
+                        keep = false;
+                    }
+                    if (keep && parked()) return;
+                    if (p.proto && keep) loop.execute(resumeTask);
+                }
+                h = next(h, keep);
+            }
+            if (eof) handler.disconnected();
+            processing.set(false);
+            schedule(); // input may have arrived after the last check
+        }
+
+        private long next(long h, boolean keep) {
+            head = ++h;
+            if (!keep) handler.disconnected();
+            if (stalled.get() && stalled.compareAndSet(true, false)) loop.execute(resumeTask);
+            return h;
+        }
+
+        // The command at head has parked (see ClientHandler): processing stays set, so nothing else of this
+        // connection runs, and a worker continues with it once it can go on.
+        private boolean parked() {
+            CompletableFuture<?> f = handler.parked();
+            if (f == null) return false;
+            f.whenComplete((r, e) -> workers.execute(parkedTask));
+            return true;
+        }
+
+        private void continueParked() {
+            boolean keep;
+            try {
+                keep = handler.resumeParked();
+            } catch (Exception e) {
+                System.err.println("Client handler error: " + e.getMessage());
+                keep = false;
+            }
+            if (keep && parked()) return;
+            next(head, keep);
+            process();
+        }
+
+        @Override
+        public void send(Frame f, String coalesceKey) {
+            if (closed) return;
+            if (!outbound.offer(f.shared(binaryOut), coalesceKey)) { eof(); return; } // slow consumer
+            if (writeScheduled.compareAndSet(false, true)) loop.wantWrite(this);
+        }
+
+        @Override
+        public boolean isBinary() { return binaryOut; }
+
+        @Override
+        public void setBinary(boolean binary) { this.binaryOut = binary; }
+
+        // loop thread only
+        void flush() {
+            writeScheduled.set(false);
+            if (!key.isValid()) { releaseWriting(); return; }
+            try {
+                while (true) {
+                    if (written == taken) {
+                        written = taken = 0;
+                        SharedBuffer sb;
+                        while (taken < GATHER && (sb = outbound.poll()) != null) {
+                            writing[taken] = sb;
+                            views[taken++] = sb.view();
+                        }
+                        if (taken == 0) break;
+                    }
+                    ch.write(views, written, taken - written);
+                    while (written < taken && !views[written].hasRemaining()) {
+                        writing[written].release();
+                        writing[written] = null;
+                        views[written++] = null;
+                    }
+                    if (written < taken) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            } catch (IOException | CancelledKeyException e) { // cancelled: closed by another thread meanwhile
+                eof();
+            }
+        }
+
+        @Override
+        public OutboundQueue outbound() { return outbound; }
+
+        // loop thread: gives back the buffers of frames taken from the queue but not fully written
+        private void releaseWriting() {
+            while (written < taken) {
+                writing[written].release();
+                writing[written] = null;
+                views[written++] = null;
+            }
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            outbound.close();
+            try { ch.close(); } catch (IOException ignored) {}
+            loop.execute(this::releaseWriting);
+        }
+    }
+}
+
+// ==========================
+// client/ChatClient.java (network layer)
+// ==========================
+package client;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+public class ChatClient {
+    private String host;
+    private int port;
+    private Socket socket;
+    private DataInputStream in;
+    private OutputStream out;
+    private Thread readerThread;
+    private boolean binary = false;
+    // sequence numbers (useSequencing): on once the server has answered PROTO_OK|SEQ
+    private volatile SeqTracker tracker;
+    private volatile boolean seqOn;
+    private final Deque<long[]> resumes = new ArrayDeque<>(); // conversations left to RESUME; guarded by this
+    private boolean resumeBusy, announcing; // guarded by this
+
+    public ChatClient(String host, int port) {
+        this.host = host; this.port = port;
+    }
+
+    public boolean connect() { return connect(false); }
+
+    // binary=true negotiates length-prefixed binary frames (PROTO|BIN) right after connecting
+    public boolean connect(boolean binary) {
+        try {
+            socket = new Socket(host, port);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new BufferedOutputStream(socket.getOutputStream());
+            if (binary) {
+                sendRaw("PROTO|BIN");
+                String reply = Wire.readLine(in, new ByteArrayOutputStream());
+                if (!"PROTO_OK|BIN".equals(reply)) { close(); return false; }
+                this.binary = true;
+            }
+            return true;
+        } catch (IOException e) { e.printStackTrace(); return false; }
+    }
+
+    public boolean isBinary() { return binary; }
+
+    // Turns on sequence numbers for this connection (PROTO|SEQ, send before LOGIN). Received messages are then
+    // checked against the tracker so replays never show twice, acknowledged with ACK|conv|seq whenever the input
+    // goes quiet, and handed on as plain INCOMING_PRIVATE / INCOMING_GROUP. Give the next connection the same
+    // tracker and call resume() after its LOGIN_OK to get only what was missed in between.
+    public void useSequencing(SeqTracker t) {
+        tracker = t;
+        send("PROTO", "SEQ");
+    }
+
+    // After LOGIN_OK: replays what was missed, one conversation at a time. With an empty tracker (a fresh
+    // start) the server picks the conversations from the ACKs it has stored for this user.
+    public synchronized void resume() {
+        if (!seqOn) return;
+        Map<Long, Long> marks = tracker.marks();
+        if (marks.isEmpty()) {
+            announcing = true;
+            send("RESUME");
+            return;
+        }
+        marks.forEach((conv, seq) -> resumes.add(new long[] { conv, seq }));
+        nextResume();
+    }
+
+    private synchronized void nextResume() {
+        if (resumeBusy || resumes.isEmpty()) return;
+        long[] r = resumes.poll();
+        resumeBusy = true;
+        send("RESUME", String.valueOf(r[0]), String.valueOf(r[1]));
+    }
+
+    // PROTO|SEQ bookkeeping on the reader thread; null when the message was a duplicate or only meant for us
+    private Wire.Message sequenced(Wire.Message m) {
+        String[] f = m.fields;
+        switch (m.name) {
+            case "PROTO_OK":
+                if (f.length > 0 && f[0].equals("SEQ")) seqOn = true;
+                return m;
+            case "INCOMING_PRIVATE_SEQ":
+            case "INCOMING_GROUP_SEQ":
+                if (!tracker.received(Long.parseLong(f[0]), Long.parseLong(f[1]))) return null;
+                return new Wire.Message(m.name.substring(0, m.name.length() - 4), Arrays.copyOfRange(f, 2, f.length));
+            case "SENT":
+                tracker.received(Long.parseLong(f[0]), Long.parseLong(f[1]));
+                return null;
+            case "RESUME_MORE":
+                synchronized (this) {
+                    long conv = Long.parseLong(f[0]), seq = Long.parseLong(f[1]);
+                    if (announcing) { // a conversation with news, from a bare RESUME
+                        tracker.mark(conv, seq, false);
+                        resumes.add(new long[] { conv, seq });
+                    } else { // the page was full, continue the same conversation
+                        resumeBusy = false;
+                        resumes.addFirst(new long[] { conv, seq });
+                    }
+                    nextResume();
+                }
+                return null;
+            case "RESUME_END":
+                synchronized (this) {
+                    if (f.length < 2) announcing = false;
+                    else { tracker.mark(Long.parseLong(f[0]), Long.parseLong(f[1]), true); resumeBusy = false; }
+                    nextResume();
+                }
+                return null;
+            default:
+                return m;
+        }
+    }
+
+    private void sendAcks() {
+        synchronized (this) { if (announcing) return; } // marks aren't settled until the server has listed its conversations
+        for (Map.Entry<Long, Long> a: tracker.toAck().entrySet()) send("ACK", String.valueOf(a.getKey()), String.valueOf(a.getValue()));
+    }
+
+    // Delivers every server message as a text-protocol line, whichever wire format is in use.
+    public void startReading(Consumer<String> onLine) {
+        startReadingFrames((op, fields) -> onLine.accept(Wire.toLine(op, fields)), onLine);
+    }
+
+    // Delivers every server message as (command name, fields), e.g. ("INCOMING_GROUP", [gid, from, content]).
+    public void startReadingFrames(BiConsumer<String, String[]> onFrame) {
+        startReadingFrames(onFrame, line -> onFrame.accept(line, new String[0]));
+    }
+
+    private void startReadingFrames(BiConsumer<String, String[]> onFrame, Consumer<String> onDisconnect) {
+        readerThread = new Thread(() -> {
+            try {
+                ByteArrayOutputStream buf = new ByteArrayOutputStream(256);
+                while (true) {
+                    Wire.Message m;
+                    if (binary) {
+                        m = Wire.readFrame(in);
+                        if (m == null) break;
+                    } else {
+                        String line = Wire.readLine(in, buf);
+                        if (line == null) break;
+                        m = Wire.parseLine(line);
+                    }
+                    if (tracker != null && m.name != null) m = sequenced(m);
+                    if (m != null && m.name != null) onFrame.accept(m.name, m.fields);
+                    if (seqOn && in.available() == 0) sendAcks(); // one ACK per conversation per burst
+                }
+            } catch (IOException | RuntimeException e) {
+                // reported below, as is the server closing the connection
+            }
+            onDisconnect.accept("DISCONNECTED");
+        });
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    // Sends a text-protocol line, e.g. "MSG|TO::bob|hi"; converted to a frame on binary connections.
+    public void sendRaw(String s) {
+        if (binary) {
+            Wire.Message m = Wire.parseLine(s);
+            send(m.name, m.fields);
+        } else {
+            write((s + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    // Sends a command with its fields, e.g. send("LOGIN", user, pass) or send("MSG", "TO::bob", "hi").
+    public void send(String command, String... fields) {
+        if (binary) write(Wire.encode(command, fields));
+        else write((Wire.toLine(command, Wire.toTextFields(command, fields)) + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private synchronized void write(byte[] b) {
+        try {
+            out.write(b);
+            out.flush();
+        } catch (IOException e) { close(); }
+    }
+
+    public void close() {
+        try { if (socket!=null) socket.close(); } catch (IOException ignored) {}
+    }
+}
+
+// ==========================
+// client/SeqTracker.java (what a client has received per conversation, for ACK and RESUME)
+// ==========================
+package client;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/*
+ Per conversation (the id the server sends in INCOMING_*_SEQ): the mark, up to which every seq has been
+ received, plus seqs received beyond it (a replay and live traffic can overlap). Outlives a connection:
+ give the same tracker to the ChatClient of the next connection and its resume() asks only for what is
+ missing. Thread-safe.
+*/
+public final class SeqTracker {
+    private static final class Conv {
+        long mark;
+        boolean guessed; // mark is just the first seq seen here; earlier ones may be missing
+        long acked; // mark last sent in an ACK
+        final TreeSet<Long> ahead = new TreeSet<>();
+    }
 
-    public List<String> getGroupHistory(int groupId, int limit) throws SQLException {
-        String q = "SELECT u.username AS from_username, m.content, m.created_at FROM messages m JOIN users u ON m.from_user_id=u.id WHERE m.group_id=? ORDER BY m.created_at ASC LIMIT ?";
-        try (Connection c = getConn(); PreparedStatement ps = c.prepareStatement(q)) {
-            ps.setInt(1, groupId); ps.setInt(2, limit);
-            try (ResultSet rs = ps.executeQuery()) {
-                List<String> res = new ArrayList<>();
-                while (rs.next()) {
-                    res.add(String.format("[%s] %s: %s", rs.getTimestamp("created_at"), rs.getString("from_username"), rs.getString("content")));
-                }
-                return res;
-            }
+    private final Map<Long, Conv> convs = new HashMap<>();
+
+    // false if seq was received before (a duplicate from a replay)
+    public synchronized boolean received(long conv, long seq) {
+        Conv c = convs.get(conv);
+        if (c == null) {
+            c = new Conv();
+            c.mark = seq;
+            c.guessed = seq > 1;
+            convs.put(conv, c);
+            return true;
         }
+        if (seq <= c.mark || !c.ahead.add(seq)) return false;
+        advance(c);
+        return true;
     }
 
-    // user list
-    public List<String> getAllUsernames() throws SQLException {
-        String q = "SELECT username FROM users";
-        try (Connection c = getConn(); PreparedStatement ps = c.prepareStatement(q); ResultSet rs = ps.executeQuery()) {
-            List<String> res = new ArrayList<>();
-            while (rs.next()) res.add(rs.getString("username"));
-            return res;
+    // The server says everything of conv up to seq has been seen (a RESUME announcement or RESUME_END).
+    // With caughtUp=false (announcement) it only fills in conversations we know nothing certain about.
+    synchronized void mark(long conv, long seq, boolean caughtUp) {
+        Conv c = convs.get(conv);
+        if (c == null) {
+            c = new Conv();
+            c.mark = c.acked = seq;
+            convs.put(conv, c);
+            return;
         }
+        if (caughtUp) {
+            c.mark = Math.max(c.mark, seq);
+        } else if (c.guessed && seq < c.mark) {
+            c.ahead.add(c.mark);
+            c.mark = seq;
+        }
+        c.guessed = false;
+        advance(c);
     }
 
-    // groups
-    public int createGroup(String name, int ownerId) throws SQLException {
-        String q = "INSERT INTO groups(name, owner_id) VALUES(?,?)";
-        try (Connection c = getConn(); PreparedStatement ps = c.prepareStatement(q, Statement.RETURN_GENERATED_KEYS)) {
-            ps.setString(1, name);
-            ps.setInt(2, ownerId);
-            ps.executeUpdate();
-            try (ResultSet rs = ps.getGeneratedKeys()) {
-                if (rs.next()) return rs.getInt(1);
-                else throw new SQLException("Failed to create group");
-            }
-        }
+    private static void advance(Conv c) {
+        while (!c.ahead.isEmpty() && c.ahead.first() <= c.mark + 1) c.mark = Math.max(c.mark, c.ahead.pollFirst());
     }
 
-    public void addUserToGroup(int userId, int groupId) throws SQLException {
-        String q = "INSERT IGNORE INTO group_members(group_id,user_id) VALUES(?,?)";
-        try (Connection c = getConn(); PreparedStatement ps = c.prepareStatement(q)) {
-            ps.setInt(1, groupId);
-            ps.setInt(2, userId);
-            ps.executeUpdate();
-        }
+    synchronized Map<Long, Long> marks() {
+        Map<Long, Long> res = new HashMap<>();
+        convs.forEach((k, c) -> res.put(k, c.mark));
+        return res;
     }
 
-    public List<Integer> getGroupMembers(int groupId) throws SQLException {
-        String q = "SELECT user_id FROM group_members WHERE group_id=?";
-        try (Connection c = getConn(); PreparedStatement ps = c.prepareStatement(q)) {
-            ps.setInt(1, groupId);
-            try (ResultSet rs = ps.executeQuery()) {
-                List<Integer> res = new ArrayList<>();
-                while (rs.next()) res.add(rs.getInt("user_id"));
-                return res;
-            }
-        }
+    // conversations whose mark moved since the last call, with the new mark
+    synchronized Map<Long, Long> toAck() {
+        Map<Long, Long> res = new HashMap<>();
+        convs.forEach((k, c) -> {
+            if (c.mark > c.acked) { res.put(k, c.mark); c.acked = c.mark; }
+        });
+        return res;
     }
 }
 
 // ==========================
-// server/Models.java
+// client/Wire.java (text/binary protocol codec, mirrors server/Op, Frame and CommandParser)
 // ==========================
-package server;
+package client;
 
-public class Models {
-    public static class User {
-        public int id;
-        public String username;
-        public User(int id, String username) { this.id = id; this.username = username; }
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+public final class Wire {
+    static final int MAX_FRAME = 1 << 20;
+
+    // command name -> binary opcode, and how many '|' fields its text form has (the last takes the rest)
+    private static final Map<String, Integer> CODES = new HashMap<>();
+    private static final Map<String, Integer> FIELDS = new HashMap<>();
+    private static final String[] NAMES = new String[256];
+    static {
+        def("REGISTER", 1, 1); def("LOGIN", 2, 1); def("MSG", 3, 2); def("CREATE_GROUP", 4, 1); def("JOIN_GROUP", 5, 1);
+        def("HISTORY_PRIVATE", 6, 3); def("HISTORY_GROUP", 7, 3); def("GET_USERS", 8, 3); def("GET_ONLINE", 9, 0);
+        def("LOGOUT", 10, 0); def("PROTO", 11, 1); def("ACK_PENDING", 12, 1); def("ACK", 13, 2); def("RESUME", 14, 2);
+        def("REGISTER_OK", 64, 0); def("REGISTER_FAIL", 65, 0); def("LOGIN_OK", 66, 2); def("LOGIN_FAIL", 67, 0); def("ERR", 68, 1);
+        def("INCOMING_PRIVATE", 69, 2); def("INCOMING_GROUP", 70, 3); def("CREATE_GROUP_OK", 71, 1); def("CREATE_GROUP_FAIL", 72, 0);
+        def("JOIN_GROUP_OK", 73, 1); def("JOIN_GROUP_FAIL", 74, 0);
+        def("HISTORY_PRIVATE_LINE", 75, 1); def("HISTORY_PRIVATE_END", 76, 1); def("HISTORY_PRIVATE_FAIL", 77, 0);
+        def("HISTORY_GROUP_LINE", 78, 1); def("HISTORY_GROUP_END", 79, 1); def("HISTORY_GROUP_FAIL", 80, 0);
+        def("USER", 81, 1); def("USER_MORE", 82, 1); def("USER_END", 83, 0); def("USER_FAIL", 84, 0);
+        def("ONLINE", 85, 1); def("OFFLINE", 86, 1); def("ONLINE_END", 87, 0); def("PROTO_OK", 88, 1);
+        def("REDIRECT", 89, 2); def("RECONNECT", 97, 1); def("PENDING", 90, 3); def("PENDING_END", 91, 1);
+        def("INCOMING_PRIVATE_SEQ", 92, 4); def("INCOMING_GROUP_SEQ", 93, 5); def("SENT", 94, 2);
+        def("RESUME_MORE", 95, 2); def("RESUME_END", 96, 2);
     }
 
-    public static class Message {
-        public int fromId;
-        public Integer toId; // null for group
-        public Integer groupId; // null for private
-        public String content;
-        public Message(int fromId, Integer toId, Integer groupId, String content) {
-            this.fromId = fromId; this.toId = toId; this.groupId = groupId; this.content = content;
+    private static void def(String name, int code, int fields) {
+        CODES.put(name, code); FIELDS.put(name, fields); NAMES[code] = name;
+    }
+
+    static final class Message {
+        final String name; // null for an opcode this client doesn't know
+        final String[] fields;
+        Message(String name, String[] fields) { this.name = name; this.fields = fields; }
+    }
+
+    private Wire() {}
+
+    // "NAME|a|b" -> (NAME, [a, b]). REGISTER/LOGIN carry user::pass in one text field but two binary fields.
+    static Message parseLine(String line) {
+        int bar = line.indexOf('|');
+        String name = bar < 0 ? line : line.substring(0, bar);
+        if (bar < 0) return new Message(name, new String[0]);
+        String rest = line.substring(bar + 1);
+        if (name.equals("REGISTER") || name.equals("LOGIN")) return new Message(name, rest.split("::", 2));
+        int n = FIELDS.getOrDefault(name, 1);
+        return new Message(name, n <= 1 ? new String[] { rest } : rest.split("\\|", n));
+    }
+
+    static String[] toTextFields(String name, String[] fields) {
+        if ((name.equals("REGISTER") || name.equals("LOGIN")) && fields.length == 2) return new String[] { fields[0] + "::" + fields[1] };
+        return fields;
+    }
+
+    static String toLine(String name, String[] fields) {
+        StringBuilder sb = new StringBuilder(name);
+        for (String f: fields) sb.append('|').append(f);
+        return sb.toString();
+    }
+
+    static byte[] encode(String name, String[] fields) {
+        Integer code = CODES.get(name);
+        if (code == null) throw new IllegalArgumentException("Unknown command " + name);
+        byte[][] enc = new byte[fields.length][];
+        int len = 1;
+        for (int i = 0; i < fields.length; i++) { enc[i] = fields[i].getBytes(StandardCharsets.UTF_8); len += 4 + enc[i].length; }
+        ByteBuffer b = ByteBuffer.allocate(4 + len);
+        b.putInt(len).put((byte) (int) code);
+        for (byte[] f: enc) b.putInt(f.length).put(f);
+        return b.array();
+    }
+
+    static String readLine(InputStream in, ByteArrayOutputStream buf) throws IOException {
+        buf.reset();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) return buf.size() == 0 ? null : buf.toString(StandardCharsets.UTF_8);
+            buf.write(b);
         }
+        String s = buf.toString(StandardCharsets.UTF_8);
+        return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+    }
+
+    static Message readFrame(DataInputStream in) throws IOException {
+        int len;
+        try { len = in.readInt(); } catch (EOFException e) { return null; }
+        if (len < 1 || len > MAX_FRAME) throw new IOException("Bad frame length " + len);
+        byte[] body = new byte[len];
+        in.readFully(body);
+        ByteBuffer b = ByteBuffer.wrap(body);
+        String name = NAMES[b.get() & 0xff];
+        int n = 0;
+        for (int p = 1; p < len; n++) p += 4 + ByteBuffer.wrap(body, p, 4).getInt();
+        String[] fields = new String[n];
+        for (int i = 0; i < n; i++) {
+            int flen = b.getInt();
+            fields[i] = new String(body, b.position(), flen, StandardCharsets.UTF_8);
+            b.position(b.position() + flen);
+        }
+        return new Message(name, fields);
     }
 }
 
 // ==========================
-// server/ClientHandler.java
+// client/LoadBench.java (connection load generator)
 // ==========================
-package server;
+package client;
 
 import java.io.*;
 import java.net.Socket;
-import java.sql.SQLException;
-import java.sql.Timestamp;
-import java.util.*;
-
-public class ClientHandler implements Runnable {
-    private Socket socket;
-    private ChatServer server;
-    private BufferedReader in;
-    private PrintWriter out;
-    private Integer userId = null;
-    private String username = null;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
-    public ClientHandler(Socket socket, ChatServer server) throws IOException {
-        this.socket = socket;
-        this.server = server;
-        this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        this.out = new PrintWriter(socket.getOutputStream(), true);
-    }
+/*
+ Opens N concurrent connections, keeps them all open, then has every connection do a few
+ request/response round trips. Uses an unauthenticated MSG (answered with ERR|Not authenticated)
+ so the numbers measure the server's connection handling, not MySQL.
+ Compare modes by starting the server with -Dchat.io=threads / virtual / nio and running e.g.
+   java client.LoadBench localhost 9000 1000
+   java client.LoadBench localhost 9000 10000
+   java client.LoadBench localhost 9000 50000
+ (raise ulimit -n on both sides; watch server threads/RSS with: ps -o nlwp,rss -p <pid>)
+*/
+public class LoadBench {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.out.println("Usage: java client.LoadBench <host> <port> <connections> [rounds]");
+            return;
+        }
+        String host = args[0];
+        int port = Integer.parseInt(args[1]);
+        int n = Integer.parseInt(args[2]);
+        int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
 
-    public void send(String msg) {
-        out.println(msg);
-    }
+        long[] rtt = new long[n * rounds];
+        AtomicInteger failed = new AtomicInteger();
+        CountDownLatch connected = new CountDownLatch(n);
+        CountDownLatch go = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(n);
 
-    @Override
-    public void run() {
-        try {
-            String line;
-            while ((line = in.readLine()) != null) {
-                // Expect JSON-like commands. For brevity we use simple pipe-separated protocol:
-                // COMMAND|arg1|arg2|...
-                String[] parts = line.split("\\|", 3);
-                String cmd = parts[0];
-                if (cmd.equals("REGISTER")) {
-                    String[] p = parts[1].split("::",2);
-                    String user = p[0]; String pass = p[1];
-                    try {
-                        boolean ok = server.db.registerUser(user, pass);
-                        send(ok?"REGISTER_OK":"REGISTER_FAIL");
-                    } catch (SQLException e) { send("REGISTER_FAIL"); }
-                } else if (cmd.equals("LOGIN")) {
-                    String[] p = parts[1].split("::",2);
-                    String user = p[0]; String pass = p[1];
-                    try {
-                        Integer id = server.db.authenticate(user, pass);
-                        if (id != null) {
-                            this.userId = id; this.username = user; server.addOnline(this);
-                            send("LOGIN_OK|"+id+"|"+user);
-                            // send user list
-                            server.broadcastUserList();
-                        } else send("LOGIN_FAIL");
-                    } catch (SQLException e) { send("LOGIN_FAIL"); }
-                } else if (cmd.equals("MSG")) {
-                    // MSG|TO::<toUsername>|content
-                    // For group: MSG|GROUP::<groupId>|content
-                    if (userId == null) { send("ERR|Not authenticated"); continue; }
-                    String target = parts[1].split("\\|",2)[0];
-                    String content = parts.length>2?parts[2]:"";
-                    if (target.startsWith("TO::")) {
-                        String toUser = target.substring(4);
-                        ClientHandler toHandler = server.getByUsername(toUser);
-                        Integer toId = server.getUserIdByName(toUser);
-                        if (toHandler != null) {
-                            toHandler.send("INCOMING_PRIVATE|"+username+"|"+content);
+        long t0 = System.nanoTime();
+        try (ExecutorService ex = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < n; i++) {
+                final int idx = i;
+                ex.execute(() -> {
+                    boolean counted = false;
+                    try (Socket s = new Socket(host, port)) {
+                        BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+                        PrintWriter out = new PrintWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8), true);
+                        connected.countDown(); counted = true;
+                        go.await();
+                        for (int r = 0; r < rounds; r++) {
+                            long st = System.nanoTime();
+                            out.println("MSG|TO::nobody|ping");
+                            if (in.readLine() == null) throw new EOFException();
+                            rtt[idx * rounds + r] = System.nanoTime() - st;
                         }
-                        // save history
-                        try { server.db.saveMessage(userId, toId, null, content, new Timestamp(System.currentTimeMillis())); } catch (SQLException e) { e.printStackTrace(); }
-                    } else if (target.startsWith("GROUP::")) {
-                        int gid = Integer.parseInt(target.substring(7));
-                        // broadcast to group members
-                        List<ClientHandler> members = server.getGroupHandlers(gid);
-                        for (ClientHandler mh: members) {
-                            mh.send("INCOMING_GROUP|"+gid+"|"+username+"|"+content);
-                        }
-                        try { server.db.saveMessage(userId, null, gid, content, new Timestamp(System.currentTimeMillis())); } catch (SQLException e) { e.printStackTrace(); }
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                        if (!counted) connected.countDown();
+                    } finally {
+                        done.countDown();
                     }
-                } else if (cmd.equals("CREATE_GROUP")) {
-                    // CREATE_GROUP|groupName
-                    if (userId==null) { send("ERR|Not authenticated"); continue; }
-                    String groupName = parts[1];
-                    try {
-                        int gid = server.db.createGroup(groupName, userId);
-                        server.db.addUserToGroup(userId, gid);
-                        send("CREATE_GROUP_OK|"+gid);
-                    } catch (SQLException e) { send("CREATE_GROUP_FAIL"); }
-                } else if (cmd.equals("JOIN_GROUP")) {
-                    // JOIN_GROUP|groupId
-                    if (userId==null) { send("ERR|Not authenticated"); continue; }
-                    int gid = Integer.parseInt(parts[1]);
-                    try { server.db.addUserToGroup(userId, gid); send("JOIN_GROUP_OK|"+gid); } catch (SQLException e) { send("JOIN_GROUP_FAIL"); }
-                } else if (cmd.equals("HISTORY_PRIVATE")) {
-                    // HISTORY_PRIVATE|otherUsername
-                    if (userId==null) { send("ERR|Not authenticated"); continue; }
-                    String other = parts[1];
-                    try {
-                        Integer otherId = server.getUserIdByName(other);
-                        List<String> hist = server.db.getPrivateHistory(userId, otherId, 1000);
-                        for (String h: hist) send("HISTORY_PRIVATE_LINE|"+h);
-                        send("HISTORY_PRIVATE_END");
-                    } catch (SQLException e) { send("HISTORY_PRIVATE_FAIL"); }
-                } else if (cmd.equals("HISTORY_GROUP")) {
-                    int gid = Integer.parseInt(parts[1]);
-                    try {
-                        List<String> hist = server.db.getGroupHistory(gid, 1000);
-                        for (String h: hist) send("HISTORY_GROUP_LINE|"+h);
-                        send("HISTORY_GROUP_END");
-                    } catch (SQLException e) { send("HISTORY_GROUP_FAIL"); }
-                } else if (cmd.equals("GET_USERS")) {
-                    try {
-                        List<String> users = server.db.getAllUsernames();
-                        for (String u: users) send("USER|"+u);
-                        send("USER_END");
-                    } catch (SQLException e) { send("USER_FAIL"); }
-                } else if (cmd.equals("LOGOUT")) {
-                    break;
-                }
+                });
             }
-        } catch (Exception e) {
-            System.err.println("Client handler error: " + e.getMessage());
-        } finally {
-            try { socket.close(); } catch (IOException ignored) {}
-            server.removeOnline(this);
-            server.broadcastUserList();
+            connected.await();
+            long connectMs = (System.nanoTime() - t0) / 1_000_000;
+            System.out.println("connections: " + n + " (failed " + failed.get() + ") opened in " + connectMs + " ms");
+            go.countDown();
+            done.await();
         }
-    }
 
-    public Integer getUserId() { return userId; }
-    public String getUsername() { return username; }
+        long[] ok = Arrays.stream(rtt).filter(v -> v > 0).sorted().toArray();
+        if (ok.length == 0) { System.out.println("no successful round trips"); return; }
+        System.out.printf("round trips: %d, failed connections: %d%n", ok.length, failed.get());
+        System.out.printf("rtt us: p50=%d p99=%d max=%d%n",
+                ok[ok.length / 2] / 1000, ok[(int) (ok.length * 0.99)] / 1000, ok[ok.length - 1] / 1000);
+    }
 }
 
 // ==========================
-// server/ChatServer.java
+// bench/DispatchBenchmark.java (JMH, inbound parse + dispatch)
 // ==========================
-package server;
+package bench;
 
-import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.sql.SQLException;
-import java.util.*;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import server.CommandParser;
+import server.Op;
 
-public class ChatServer {
-    private final int port;
-    public DBHelper db;
-    private ServerSocket serverSocket;
-    private final List<ClientHandler> online = Collections.synchronizedList(new ArrayList<>());
-    private final ThreadPoolExecutor pool = (ThreadPoolExecutor) Executors.newCachedThreadPool();
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
 
-    public ChatServer(int port, String dbUrl, String dbUser, String dbPass) throws ClassNotFoundException {
-        this.port = port;
-        this.db = new DBHelper(dbUrl, dbUser, dbPass);
-    }
+/*
+ Compares the old line handling (String per line, split("\\|",3), name lookup, split of the
+ target) with CommandParser working on the read buffer. Run with the GC profiler to see the
+ allocation per command:
+   java -cp jmh-benchmarks.jar:. org.openjdk.jmh.Main DispatchBenchmark -prof gc
+ (gc.alloc.rate.norm is bytes per operation)
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+    private static final byte[] TO = "TO::".getBytes(StandardCharsets.US_ASCII);
 
-    public void start() throws IOException {
-        serverSocket = new ServerSocket(port);
-        System.out.println("ChatServer listening on port " + port);
-        while (true) {
-            Socket s = serverSocket.accept();
-            try {
-                ClientHandler h = new ClientHandler(s, this);
-                pool.execute(h);
-            } catch (IOException e) { s.close(); }
+    @Param({"MSG|TO::alice|hello there, how is it going?", "MSG|GROUP::42|standup in five", "JOIN_GROUP|42"})
+    public String line;
+
+    private byte[] bytes;
+    private final CommandParser parser = new CommandParser();
+
+    @Setup
+    public void setup() { bytes = line.getBytes(StandardCharsets.UTF_8); }
+
+    @Benchmark
+    public void splitLine(Blackhole bh) {
+        String l = new String(bytes, 0, bytes.length, StandardCharsets.UTF_8);
+        String[] parts = l.split("\\|", 3);
+        Op op = Op.byName(parts[0]);
+        if (op == Op.MSG) {
+            String target = parts[1];
+            if (target.startsWith("TO::")) bh.consume(target.substring(4));
+            else if (target.startsWith("GROUP::")) bh.consume(Integer.parseInt(target.substring(7)));
+            bh.consume(parts.length > 2 ? parts[2] : "");
+        } else if (op == Op.JOIN_GROUP) {
+            bh.consume(Integer.parseInt(parts[1]));
         }
     }
 
-    // manage online
-    public void addOnline(ClientHandler ch) { online.add(ch); }
-    public void removeOnline(ClientHandler ch) { online.remove(ch); }
-    public ClientHandler getByUsername(String username) {
-        synchronized (online) {
-            for (ClientHandler ch: online) if (username.equals(ch.getUsername())) return ch;
+    // dispatch only: the content String a real MSG needs is left out, as the handler creates it either way
+    @Benchmark
+    public void commandParser(Blackhole bh) {
+        CommandParser c = parser;
+        c.parseText(bytes, 0, bytes.length);
+        Op op = c.op();
+        if (op == Op.MSG) {
+            if (c.startsWith(0, TO)) bh.consume(c.name(0, TO.length));
+            else bh.consume(c.intArg(0, 7));
+        } else if (op == Op.JOIN_GROUP) {
+            bh.consume(c.intArg(0));
         }
-        return null;
     }
+}
 
-    public Integer getUserIdByName(String username) {
-        synchronized (online) {
-            for (ClientHandler ch: online) if (username.equals(ch.getUsername())) return ch.getUserId();
+// ==========================
+// bench/HistoryQueryBench.java (history query latency vs. table size)
+// ==========================
+package bench;
+
+import java.sql.*;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import server.DBHelper;
+
+/*
+ Fills messages with synthetic traffic and times the history queries against it, old and new:
+   java -cp .:mysql-connector-j.jar bench.HistoryQueryBench <jdbcUrl> <user> <pass> seed <rows> [users] [groups]
+   java -cp .:mysql-connector-j.jar bench.HistoryQueryBench <jdbcUrl> <user> <pass> query [samples]
+ Use a scratch database with the schema from the README; seed appends, so run it for 10M, time the
+ queries, seed another 90M and time them again. Add rewriteBatchedStatements=true to the URL for seeding.
+ "query" prints the EXPLAIN plan and p50/p99/max of the newest page and of a page 50 pages back for
+ random conversations. The old queries (OR on from/to, ORDER BY created_at) slow down with table
+ size; the conv_key / (group_id, id) ones should stay flat.
+*/
+public class HistoryQueryBench {
+    private static final int PAGE = 100;
+
+    static final String OLD_PRIVATE = "SELECT m.id, u1.username, m.content, m.created_at FROM messages m JOIN users u1 ON m.from_user_id=u1.id " +
+            "WHERE ((m.from_user_id=? AND m.to_user_id=?) OR (m.from_user_id=? AND m.to_user_id=?)) ORDER BY m.created_at DESC LIMIT ?";
+    static final String NEW_PRIVATE = "SELECT m.id, u1.username, m.content, m.created_at FROM messages m JOIN users u1 ON m.from_user_id=u1.id " +
+            "WHERE m.conv_key=? AND m.id < ? ORDER BY m.id DESC LIMIT ?";
+    static final String OLD_GROUP = "SELECT m.id, u.username, m.content, m.created_at FROM messages m JOIN users u ON m.from_user_id=u.id " +
+            "WHERE m.group_id=? ORDER BY m.created_at DESC LIMIT ?";
+    static final String NEW_GROUP = "SELECT m.id, u.username, m.content, m.created_at FROM messages m JOIN users u ON m.from_user_id=u.id " +
+            "WHERE m.group_id=? AND m.id < ? ORDER BY m.id DESC LIMIT ?";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.out.println("Usage: java bench.HistoryQueryBench <jdbcUrl> <user> <pass> seed <rows> [users] [groups] | query [samples]");
+            return;
+        }
+        try (Connection c = DriverManager.getConnection(args[0], args[1], args[2])) {
+            if (args[3].equals("seed")) {
+                long rows = Long.parseLong(args[4]);
+                int users = args.length > 5 ? Integer.parseInt(args[5]) : 100_000;
+                int groups = args.length > 6 ? Integer.parseInt(args[6]) : 1_000;
+                seed(c, rows, users, groups);
+            } else {
+                query(c, args.length > 4 ? Integer.parseInt(args[4]) : 200);
+            }
         }
-        // fallback: query DB? For simplicity return null when offline.
-        return null;
     }
 
-    public List<ClientHandler> getGroupHandlers(int groupId) {
-        // naive approach: check DB for member IDs and map to online handlers
-        try {
-            List<Integer> members = db.getGroupMembers(groupId);
-            List<ClientHandler> res = new ArrayList<>();
-            synchronized (online) {
-                for (ClientHandler ch: online) {
-                    if (ch.getUserId()!=null && members.contains(ch.getUserId())) res.add(ch);
+    // Users bench0..benchN and groups are created once; private messages go mostly to a few partners
+    // per user so conversations get long, like real traffic.
+    static void seed(Connection c, long rows, int users, int groups) throws SQLException {
+        c.setAutoCommit(false);
+        int firstUser = ensureUsers(c, users);
+        int firstGroup = ensureGroups(c, groups, firstUser);
+        ThreadLocalRandom r = ThreadLocalRandom.current();
+        long t0 = System.nanoTime();
+        try (PreparedStatement ps = c.prepareStatement("INSERT INTO messages(from_user_id,to_user_id,group_id,content) VALUES(?,?,?,?)")) {
+            for (long i = 1; i <= rows; i++) {
+                int from = firstUser + r.nextInt(users);
+                ps.setInt(1, from);
+                if (r.nextInt(4) == 0) {
+                    ps.setNull(2, Types.INTEGER);
+                    ps.setInt(3, firstGroup + r.nextInt(groups));
+                } else {
+                    int to = firstUser + Math.floorMod(from - firstUser + 1 + r.nextInt(8), users);
+                    ps.setInt(2, to);
+                    ps.setNull(3, Types.INTEGER);
+                }
+                ps.setString(4, "bench message " + i);
+                ps.addBatch();
+                if (i % 5000 == 0) {
+                    ps.executeBatch();
+                    c.commit();
+                    if (i % 1_000_000 == 0) System.out.printf("%d rows, %.0f rows/s%n", i, i / ((System.nanoTime() - t0) / 1e9));
                 }
             }
-            return res;
-        } catch (SQLException e) { return Collections.emptyList(); }
+            ps.executeBatch();
+            c.commit();
+        }
     }
 
-    public void broadcastUserList() {
-        try {
-            List<String> users = db.getAllUsernames();
-            synchronized (online) {
-                for (ClientHandler ch: online) {
-                    for (String u: users) ch.send("USER|"+u);
-                    ch.send("USER_END");
-                }
+    private static int ensureUsers(Connection c, int users) throws SQLException {
+        try (PreparedStatement ps = c.prepareStatement("INSERT IGNORE INTO users(username,password) VALUES(?,?)")) {
+            for (int i = 0; i < users; i++) {
+                ps.setString(1, "bench" + i); ps.setString(2, "x"); ps.addBatch();
+                if (i % 5000 == 4999) ps.executeBatch();
             }
-        } catch (SQLException e) { e.printStackTrace(); }
+            ps.executeBatch();
+        }
+        c.commit();
+        try (Statement st = c.createStatement(); ResultSet rs = st.executeQuery("SELECT MIN(id) FROM users WHERE username LIKE 'bench%'")) {
+            rs.next();
+            return rs.getInt(1); // ids of bench users are consecutive when created in one run
+        }
     }
 
-    public static void main(String[] args) throws Exception {
-        // Usage: java server.ChatServer 9000 jdbc:mysql://localhost:3306/chatdb dbuser dbpass
-        if (args.length<4) {
-            System.out.println("Usage: java server.ChatServer <port> <dbUrl> <dbUser> <dbPass>");
-            return;
+    private static int ensureGroups(Connection c, int groups, int owner) throws SQLException {
+        try (Statement st = c.createStatement()) {
+            try (ResultSet rs = st.executeQuery("SELECT MIN(id), COUNT(*) FROM groups WHERE name LIKE 'bench%'")) {
+                rs.next();
+                if (rs.getInt(2) >= groups) return rs.getInt(1);
+            }
         }
-        int port = Integer.parseInt(args[0]);
-        ChatServer s = new ChatServer(port, args[1], args[2], args[3]);
-        s.start();
+        try (PreparedStatement ps = c.prepareStatement("INSERT INTO groups(name,owner_id) VALUES(?,?)")) {
+            for (int i = 0; i < groups; i++) { ps.setString(1, "bench" + i); ps.setInt(2, owner); ps.addBatch(); }
+            ps.executeBatch();
+        }
+        c.commit();
+        return ensureGroups(c, groups, owner);
     }
-}
 
-// ==========================
-// client/ChatClient.java (network layer)
-// ==========================
-package client;
+    static void query(Connection c, int samples) throws SQLException {
+        int[][] convs = new int[samples][];
+        int[] groupIds = new int[samples];
+        try (Statement st = c.createStatement()) {
+            // sample conversations by message id so busy conversations are picked more often
+            long maxId;
+            try (ResultSet rs = st.executeQuery("SELECT MAX(id) FROM messages")) { rs.next(); maxId = rs.getLong(1); }
+            System.out.println("messages: max id " + maxId);
+            ThreadLocalRandom r = ThreadLocalRandom.current();
+            try (PreparedStatement ps = c.prepareStatement("SELECT from_user_id, to_user_id, group_id FROM messages WHERE id >= ? ORDER BY id LIMIT 1")) {
+                int p = 0, g = 0;
+                while (p < samples || g < samples) {
+                    ps.setLong(1, 1 + r.nextLong(maxId));
+                    try (ResultSet rs = ps.executeQuery()) {
+                        if (!rs.next()) continue;
+                        int to = rs.getInt(2);
+                        if (!rs.wasNull() && p < samples) convs[p++] = new int[] { rs.getInt(1), to };
+                        int gid = rs.getInt(3);
+                        if (!rs.wasNull() && g < samples) groupIds[g++] = gid;
+                    }
+                }
+            }
+        }
+        explain(c, "EXPLAIN " + NEW_PRIVATE.replaceFirst("\\?", String.valueOf(DBHelper.convKey(convs[0][0], convs[0][1])))
+                .replaceFirst("\\?", String.valueOf(Long.MAX_VALUE)).replaceFirst("\\?", String.valueOf(PAGE)));
+        explain(c, "EXPLAIN " + NEW_GROUP.replaceFirst("\\?", String.valueOf(groupIds[0]))
+                .replaceFirst("\\?", String.valueOf(Long.MAX_VALUE)).replaceFirst("\\?", String.valueOf(PAGE)));
 
-import java.io.*;
-import java.net.Socket;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.function.Consumer;
+        long[] oldP = new long[samples], newP = new long[samples], deepP = new long[samples];
+        long[] oldG = new long[samples], newG = new long[samples], deepG = new long[samples];
+        try (PreparedStatement op = c.prepareStatement(OLD_PRIVATE); PreparedStatement np = c.prepareStatement(NEW_PRIVATE);
+             PreparedStatement og = c.prepareStatement(OLD_GROUP); PreparedStatement ng = c.prepareStatement(NEW_GROUP)) {
+            for (int i = 0; i < samples; i++) {
+                int a = convs[i][0], b = convs[i][1];
+                op.setInt(1, a); op.setInt(2, b); op.setInt(3, b); op.setInt(4, a); op.setInt(5, PAGE);
+                oldP[i] = time(op);
+                long key = DBHelper.convKey(a, b);
+                np.setLong(1, key); np.setLong(2, Long.MAX_VALUE); np.setInt(3, PAGE);
+                long[] cursor = new long[1];
+                newP[i] = time(np, cursor);
+                deepP[i] = deep(np, 1, key, cursor[0]);
 
-public class ChatClient {
-    private String host;
-    private int port;
-    private Socket socket;
-    private BufferedReader in;
-    private PrintWriter out;
-    private Thread readerThread;
+                og.setInt(1, groupIds[i]); og.setInt(2, PAGE);
+                oldG[i] = time(og);
+                ng.setInt(1, groupIds[i]); ng.setLong(2, Long.MAX_VALUE); ng.setInt(3, PAGE);
+                newG[i] = time(ng, cursor);
+                deepG[i] = deep(ng, 1, groupIds[i], cursor[0]);
+            }
+        }
+        report("private, old query  ", oldP);
+        report("private, newest page", newP);
+        report("private, 50 pages in", deepP);
+        report("group, old query    ", oldG);
+        report("group, newest page  ", newG);
+        report("group, 50 pages in  ", deepG);
+    }
 
-    public ChatClient(String host, int port) {
-        this.host = host; this.port = port;
+    // follows the cursor 49 pages back, times the 50th page
+    private static long deep(PreparedStatement ps, int keyIdx, long key, long cursor) throws SQLException {
+        long[] cur = { cursor };
+        for (int page = 0; page < 49 && cur[0] > 0; page++) {
+            ps.setLong(keyIdx, key); ps.setLong(keyIdx + 1, cur[0]); ps.setInt(keyIdx + 2, PAGE);
+            time(ps, cur);
+        }
+        if (cur[0] <= 0) return 0;
+        ps.setLong(keyIdx, key); ps.setLong(keyIdx + 1, cur[0]); ps.setInt(keyIdx + 2, PAGE);
+        return time(ps, cur);
     }
 
-    public boolean connect() {
-        try {
-            socket = new Socket(host, port);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
-            return true;
-        } catch (IOException e) { e.printStackTrace(); return false; }
+    private static long time(PreparedStatement ps) throws SQLException {
+        return time(ps, new long[1]);
     }
 
-    public void startReading(Consumer<String> onLine) {
-        readerThread = new Thread(() -> {
-            try {
-                String line;
-                while ((line = in.readLine())!=null) onLine.accept(line);
-            } catch (IOException e) { onLine.accept("DISCONNECTED"); }
-        });
-        readerThread.setDaemon(true);
-        readerThread.start();
+    // runs the query, reads every row, returns microseconds; cursor[0] = last id (0 if the page wasn't full)
+    private static long time(PreparedStatement ps, long[] cursor) throws SQLException {
+        long t = System.nanoTime();
+        int n = 0;
+        long last = 0;
+        try (ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) { last = rs.getLong(1); rs.getString(2); rs.getString(3); n++; }
+        }
+        cursor[0] = n == PAGE ? last : 0;
+        return (System.nanoTime() - t) / 1000;
     }
 
-    public void sendRaw(String s) { out.println(s); }
-    public void close() {
-        try { if (socket!=null) socket.close(); } catch (IOException ignored) {}
+    private static void explain(Connection c, String sql) throws SQLException {
+        try (Statement st = c.createStatement(); ResultSet rs = st.executeQuery(sql)) {
+            while (rs.next()) {
+                System.out.println("  " + rs.getString("table") + ": type=" + rs.getString("type") + " key=" + rs.getString("key")
+                        + " rows=" + rs.getString("rows") + " extra=" + rs.getString("Extra"));
+            }
+        }
+    }
+
+    private static void report(String name, long[] us) {
+        long[] s = us.clone();
+        Arrays.sort(s);
+        System.out.printf("%s p50 %d us, p99 %d us, max %d us%n", name, s[s.length / 2], s[Math.min(s.length - 1, s.length * 99 / 100)], s[s.length - 1]);
     }
 }
 
@@ -460,6 +6505,7 @@ public class ChatClient {
 // ==========================
 package client;
 
+import javafx.animation.PauseTransition;
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.collections.FXCollections;
@@ -470,20 +6516,46 @@ import javafx.scene.control.*;
 import javafx.scene.input.KeyCode;
 import javafx.scene.layout.*;
 import javafx.stage.Stage;
+import javafx.util.Duration;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 public class MainApp extends Application {
-    private ChatClient client;
+    private volatile ChatClient client; // read by reader threads to drop lines of replaced connections
     private String username;
     private int userId;
 
     private ListView<String> usersList = new ListView<>();
     private ListView<String> messagesList = new ListView<>();
     private TextField inputField = new TextField();
+    private TextField userSearch = new TextField();
     private TextField hostField = new TextField("localhost");
     private TextField portField = new TextField("9000");
+    private final Set<String> onlineUsers = new HashSet<>();
+    // the user list shows one page of the users matching userQuery (a name prefix); more load on request
+    private static final int USER_PAGE = 100;
+    private static final String MORE_USERS = new String("--- More users (double-click) ---"); // compared by identity
+    private final Set<String> listedUsers = new HashSet<>(); // usersList's names, for O(1) duplicate checks
+    private int userRequests; // GET_USERS not yet answered; answers only count while just the newest is left
+    private String userQuery = "";
+    private String userCursor;
+    // history arrives newest first, a page at a time; lines are inserted at historyAt so they read oldest to newest
+    private static final int HISTORY_PAGE = 100;
+    private static final String LOAD_OLDER = "--- Load older messages (double-click) ---";
+    private String historyPeer;
+    private String loginLine; // resent after a REDIRECT or when reconnecting
+    // where we are connected; after RECONNECT|<ms> or a lost connection we log in there again
+    private String host;
+    private int port;
+    private PauseTransition reconnectTimer; // set while a reconnect is scheduled
+    private int reconnectAttempts;
+    private static final int RECONNECT_MAX_MS = 30_000;
+    private final SeqTracker seqTracker = new SeqTracker(); // kept across connections, see ChatClient.resume
+    private String historyCursor;
+    private int historyAt;
 
     @Override
     public void start(Stage stage) {
@@ -504,7 +6576,16 @@ public class MainApp extends Application {
         // chat pane
         BorderPane chatPane = new BorderPane();
         usersList.setPrefWidth(150);
-        chatPane.setLeft(usersList);
+        usersList.setCellFactory(lv -> new ListCell<String>() {
+            @Override
+            protected void updateItem(String u, boolean empty) {
+                super.updateItem(u, empty);
+                setText(empty || u == null ? null : u == MORE_USERS ? u : (onlineUsers.contains(u) ? "\u25CF " : "   ") + u);
+            }
+        });
+        userSearch.setPromptText("search users");
+        userSearch.textProperty().addListener((o, was, now) -> searchUsers(now.trim()));
+        chatPane.setLeft(new VBox(4, userSearch, usersList));
         chatPane.setCenter(messagesList);
         HBox bottom = new HBox(8, inputField, new Button("Send") {{ setOnAction(e-> sendMessageToSelected()); }});
         bottom.setPadding(new Insets(8));
@@ -513,28 +6594,25 @@ public class MainApp extends Application {
 
         // actions
         loginBtn.setOnAction(e-> {
-            String host = hostField.getText(); int port = Integer.parseInt(portField.getText());
-            client = new ChatClient(host, port);
-            if (!client.connect()) { showAlert("Connection failed"); return; }
-            client.startReading(this::handleServerLine);
-            client.sendRaw("LOGIN|"+userTf.getText()+"::"+passTf.getText());
+            loginLine = "LOGIN|"+userTf.getText()+"::"+passTf.getText();
+            connectAndSend(hostField.getText(), Integer.parseInt(portField.getText()), loginLine);
         });
 
-        regBtn.setOnAction(e-> {
-            String host = hostField.getText(); int port = Integer.parseInt(portField.getText());
-            client = new ChatClient(host, port);
-            if (!client.connect()) { showAlert("Connection failed"); return; }
-            client.startReading(this::handleServerLine);
-            client.sendRaw("REGISTER|"+userTf.getText()+"::"+passTf.getText());
-        });
+        regBtn.setOnAction(e-> connectAndSend(hostField.getText(), Integer.parseInt(portField.getText()),
+                "REGISTER|"+userTf.getText()+"::"+passTf.getText()));
 
         usersList.setOnMouseClicked(e-> {
-            if (e.getClickCount()==2) {
+            if (e.getClickCount()==2 && client!=null) {
                 String sel = usersList.getSelectionModel().getSelectedItem();
-                if (sel!=null) requestPrivateHistory(sel);
+                if (sel==MORE_USERS) requestMoreUsers();
+                else if (sel!=null) requestPrivateHistory(sel);
             }
         });
 
+        messagesList.setOnMouseClicked(e-> {
+            if (e.getClickCount()==2 && client!=null && LOAD_OLDER.equals(messagesList.getSelectionModel().getSelectedItem())) requestOlderHistory();
+        });
+
         inputField.setOnKeyPressed(e-> { if (e.getCode()==KeyCode.ENTER) sendMessageToSelected(); });
 
         stage.setScene(loginScene);
@@ -543,9 +6621,47 @@ public class MainApp extends Application {
         // On successful login we'll switch scenes from handleServerLine
     }
 
+    private void connectAndSend(String host, int port, String firstLine) {
+        if (!open(host, port, firstLine)) showAlert("Connection failed");
+    }
+
+    private boolean open(String host, int port, String firstLine) {
+        ChatClient old = client;
+        client = null; // before close(), so its DISCONNECTED is ignored
+        if (old != null) old.close();
+        ChatClient c = new ChatClient(host, port);
+        if (!c.connect()) return false;
+        client = c;
+        this.host = host; this.port = port;
+        // lines from a connection we have since replaced (e.g. after REDIRECT) are ignored
+        c.startReading(line -> { if (client == c) handleServerLine(line); });
+        c.useSequencing(seqTracker);
+        c.sendRaw(firstLine);
+        return true;
+    }
+
+    // logs in again after delayMs (once, however often this is called meanwhile); failures retry via retryDelay
+    private void reconnectLater(long delayMs) {
+        if (reconnectTimer != null) return;
+        reconnectTimer = new PauseTransition(Duration.millis(delayMs));
+        reconnectTimer.setOnFinished(e -> {
+            reconnectTimer = null;
+            if (!open(host, port, loginLine)) reconnectLater(retryDelay());
+        });
+        reconnectTimer.play();
+    }
+
+    // 1, 2, 4 ... 30 s since the last successful login, each randomly shortened by up to half so the
+    // clients of a server that went away don't retry in step
+    private long retryDelay() {
+        long backoff = Math.min(RECONNECT_MAX_MS, 1000L << Math.min(reconnectAttempts++, 5));
+        return backoff / 2 + (long) (Math.random() * backoff / 2);
+    }
+
     private void sendMessageToSelected() {
         String sel = usersList.getSelectionModel().getSelectedItem();
-        if (sel==null) { showAlert("Select a user to message"); return; }
+        if (sel==null || sel==MORE_USERS) { showAlert("Select a user to message"); return; }
+        if (client==null) { showAlert("Not connected, reconnecting"); return; }
         String txt = inputField.getText(); if (txt.trim().isEmpty()) return;
         // send private
         client.sendRaw("MSG|TO::"+sel+"|"+txt);
@@ -553,8 +6669,43 @@ public class MainApp extends Application {
         inputField.clear();
     }
 
+    // first page of the users whose name starts with query; answers to earlier queries still on the way are dropped
+    private void searchUsers(String query) {
+        userQuery = query;
+        userCursor = null;
+        usersList.getItems().clear();
+        listedUsers.clear();
+        if (client == null || username == null) return;
+        userRequests++;
+        client.sendRaw("GET_USERS||"+USER_PAGE+"|"+query);
+    }
+
+    private void requestMoreUsers() {
+        if (userCursor==null) return;
+        usersList.getItems().remove(usersList.getItems().size()-1); // the MORE_USERS marker
+        userRequests++;
+        client.sendRaw("GET_USERS|"+userCursor+"|"+USER_PAGE+"|"+userQuery);
+        userCursor = null;
+    }
+
+    private void listUser(String u) {
+        if (!listedUsers.add(u)) return;
+        ObservableList<String> items = usersList.getItems();
+        // stays above the MORE_USERS marker
+        if (userCursor != null) items.add(items.size()-1, u); else items.add(u);
+    }
+
     private void requestPrivateHistory(String other) {
-        client.sendRaw("HISTORY_PRIVATE|"+other);
+        messagesList.getItems().add("--- History with "+other+" ---");
+        historyPeer = other; historyCursor = null; historyAt = messagesList.getItems().size();
+        client.sendRaw("HISTORY_PRIVATE|"+other+"||"+HISTORY_PAGE);
+    }
+
+    private void requestOlderHistory() {
+        if (historyCursor==null) return;
+        messagesList.getItems().remove(historyAt); // the LOAD_OLDER marker
+        client.sendRaw("HISTORY_PRIVATE|"+historyPeer+"|"+historyCursor+"|"+HISTORY_PAGE);
+        historyCursor = null;
     }
 
     private void handleServerLine(String line) {
@@ -563,41 +6714,79 @@ public class MainApp extends Application {
                 // LOGIN_OK|id|username
                 String[] p = line.split("\\|",3);
                 this.userId = Integer.parseInt(p[1]); this.username = p[2];
+                reconnectAttempts = 0;
                 Stage st = (Stage) messagesList.getScene().getWindow();
                 st.setTitle("Luffy Chat - " + username);
                 st.setScene(messagesList.getScene()); // no - we need to switch to chat scene
                 // Instead, rebuild chat scene quickly:
                 BorderPane chatPane = new BorderPane();
-                chatPane.setLeft(usersList); chatPane.setCenter(messagesList);
+                chatPane.setLeft(new VBox(4, userSearch, usersList)); chatPane.setCenter(messagesList);
                 HBox bottom = new HBox(8, inputField, new Button("Send") {{ setOnAction(e-> sendMessageToSelected()); }});
                 bottom.setPadding(new Insets(8)); chatPane.setBottom(bottom);
                 Scene chatScene = new Scene(chatPane, 800, 600);
                 st.setScene(chatScene);
+                // first page of the directory, then who is online right now; ONLINE/OFFLINE deltas follow
+                userRequests = 0;
+                searchUsers(userQuery);
+                client.sendRaw("GET_ONLINE");
+                client.resume(); // messages missed since the last connection, if any
             } else if (line.equals("REGISTER_OK")) {
                 showAlert("Registered successfully. Please login.");
             } else if (line.equals("REGISTER_FAIL")) {
                 showAlert("Register failed (username may exist).");
             } else if (line.equals("LOGIN_FAIL")) {
                 showAlert("Login failed. Check credentials.");
+            } else if (line.startsWith("REDIRECT|")) {
+                // REDIRECT|host|port: this user lives on another cluster node, log in there
+                String[] p = line.split("\\|",3);
+                connectAndSend(p[1], Integer.parseInt(p[2]), loginLine);
             } else if (line.startsWith("INCOMING_PRIVATE|")) {
                 // INCOMING_PRIVATE|fromUser|content
                 String[] p = line.split("\\|",3);
                 messagesList.getItems().add(p[1]+": "+p[2]);
+            } else if (line.startsWith("PENDING|")) {
+                // PENDING|fromUser|time|content, sent to us while we were offline
+                String[] p = line.split("\\|",4);
+                messagesList.getItems().add("["+p[2]+"] "+p[1]+": "+p[3]+" (while offline)");
+            } else if (line.startsWith("PENDING_END|")) {
+                client.sendRaw("ACK_PENDING|"+line.substring(12)); // got them; the server sends the next page
             } else if (line.startsWith("INCOMING_GROUP|")) {
                 String[] p = line.split("\\|",4); // groupId|from|content
                 messagesList.getItems().add("[Group:"+p[1]+"] "+p[2]+": "+p[3]);
             } else if (line.startsWith("USER|")) {
-                String u = line.substring(5);
-                ObservableList<String> items = usersList.getItems();
-                if (!items.contains(u)) items.add(u);
+                if (userRequests == 1) listUser(line.substring(5));
+            } else if (line.startsWith("USER_MORE|")) {
+                if (userRequests-- == 1) {
+                    userCursor = line.substring(10);
+                    usersList.getItems().add(MORE_USERS);
+                }
             } else if (line.equals("USER_END")) {
+                userRequests--;
+            } else if (line.startsWith("ONLINE|")) {
+                String u = line.substring(7);
+                onlineUsers.add(u);
+                if (u.startsWith(userQuery)) listUser(u);
+                usersList.refresh();
+            } else if (line.startsWith("OFFLINE|")) {
+                onlineUsers.remove(line.substring(8));
+                usersList.refresh();
+            } else if (line.equals("ONLINE_END")) {
                 // finished
             } else if (line.startsWith("HISTORY_PRIVATE_LINE|")) {
-                messagesList.getItems().add(line.substring(21));
-            } else if (line.equals("HISTORY_PRIVATE_END")) {
-                messagesList.getItems().add("--- End of history ---");
+                messagesList.getItems().add(historyAt, line.substring(21));
+            } else if (line.startsWith("HISTORY_PRIVATE_END")) {
+                // HISTORY_PRIVATE_END|<cursor> when older messages exist
+                historyCursor = line.length() > 20 ? line.substring(20) : null;
+                messagesList.getItems().add(historyAt, historyCursor != null ? LOAD_OLDER : "--- Start of history ---");
+            } else if (line.startsWith("RECONNECT|")) {
+                // RECONNECT|ms: the server is shutting down (e.g. a new version is being deployed)
+                messagesList.getItems().add("--- Server restarting, reconnecting ---");
+                reconnectLater(Long.parseLong(line.substring(10)));
             } else if (line.equals("DISCONNECTED")) {
-                showAlert("Disconnected from server");
+                if (reconnectTimer != null) return; // expected after RECONNECT
+                if (username == null) { showAlert("Disconnected from server"); return; }
+                messagesList.getItems().add("--- Connection lost, reconnecting ---");
+                reconnectLater(retryDelay());
             } else {
                 // catchall for debug
                 System.out.println("SERVER: " + line);
@@ -652,21 +6841,181 @@ CREATE TABLE messages (
   group_id INT NULL,
   content TEXT NOT NULL,
   created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+  seq BIGINT NOT NULL DEFAULT 0, -- position in its conversation (1, 2, 3, ...), used by RESUME
+  -- private conversation key, same for both directions: (smaller user id << 32) | larger user id
+  conv_key BIGINT AS (IF(to_user_id IS NULL, NULL, (LEAST(from_user_id,to_user_id) << 32) | GREATEST(from_user_id,to_user_id))) VIRTUAL,
+  INDEX idx_messages_conv (conv_key, id),
+  INDEX idx_messages_group (group_id, id),
+  INDEX idx_messages_conv_seq (conv_key, seq),
+  INDEX idx_messages_group_seq (group_id, seq),
   FOREIGN KEY (from_user_id) REFERENCES users(id) ON DELETE CASCADE,
   FOREIGN KEY (to_user_id) REFERENCES users(id) ON DELETE CASCADE,
   FOREIGN KEY (group_id) REFERENCES groups(id) ON DELETE CASCADE
 ) ENGINE=InnoDB;
 
+-- private messages waiting for an offline recipient; rows are deleted once the client acknowledges them
+CREATE TABLE pending_messages (
+  id BIGINT AUTO_INCREMENT PRIMARY KEY,
+  user_id INT NOT NULL,
+  from_username VARCHAR(100) NOT NULL,
+  content TEXT NOT NULL,
+  created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+  conv_key BIGINT NOT NULL DEFAULT 0,
+  seq BIGINT NOT NULL DEFAULT 0,
+  INDEX idx_pending_user (user_id, id),
+  FOREIGN KEY (user_id) REFERENCES users(id) ON DELETE CASCADE
+) ENGINE=InnoDB;
+
+-- highest seq of each conversation a user's client has acknowledged (ACK|conv|seq); conv_key is the
+-- conversation key of the messages table for private chats and -group_id for groups
+CREATE TABLE conversation_acks (
+  user_id INT NOT NULL,
+  conv_key BIGINT NOT NULL,
+  seq BIGINT NOT NULL,
+  PRIMARY KEY (user_id, conv_key),
+  FOREIGN KEY (user_id) REFERENCES users(id) ON DELETE CASCADE
+) ENGINE=InnoDB;
+
+-- Migrating an existing database (MySQL 8.0; on 5.7 use ALGORITHM=INPLACE for the column). Adding a VIRTUAL
+-- column is instant and the indexes are built online, so chat traffic keeps flowing. idx_messages_group also
+-- serves the group_id foreign key, so MySQL drops the index it had created for it.
+ALTER TABLE messages
+  ADD COLUMN conv_key BIGINT AS (IF(to_user_id IS NULL, NULL, (LEAST(from_user_id,to_user_id) << 32) | GREATEST(from_user_id,to_user_id))) VIRTUAL,
+  ALGORITHM=INSTANT;
+ALTER TABLE messages
+  ADD INDEX idx_messages_conv (conv_key, id),
+  ADD INDEX idx_messages_group (group_id, id),
+  ALGORITHM=INPLACE, LOCK=NONE;
+-- Sequence numbers (RESUME): older messages keep seq 0 and are not replayed, numbering starts after them.
+ALTER TABLE messages ADD COLUMN seq BIGINT NOT NULL DEFAULT 0, ALGORITHM=INSTANT;
+ALTER TABLE messages ADD INDEX idx_messages_conv_seq (conv_key, seq), ADD INDEX idx_messages_group_seq (group_id, seq),
+  ALGORITHM=INPLACE, LOCK=NONE;
+ALTER TABLE pending_messages ADD COLUMN conv_key BIGINT NOT NULL DEFAULT 0, ADD COLUMN seq BIGINT NOT NULL DEFAULT 0;
+-- Check the plans: both should show type=range on the new index and no "Using filesort".
+-- EXPLAIN SELECT id FROM messages WHERE conv_key=(1<<32|2) AND id < 1000000 ORDER BY id DESC LIMIT 100;
+-- EXPLAIN SELECT id FROM messages WHERE group_id=1 AND id < 1000000 ORDER BY id DESC LIMIT 100;
+
+-- Optional, for installations that keep years of messages: monthly RANGE partitions plus an archive of cold
+-- months (run the server with -Dchat.partitions.manage=true, see section 2). MySQL doesn't allow foreign keys on
+-- partitioned tables and every unique key must contain the partitioning column, so the foreign keys go (deleting a
+-- user no longer cascades to their messages) and the primary key becomes (id, created_at). This rebuilds the
+-- table: run it in a maintenance window, or through pt-online-schema-change / gh-ost on a big table.
+-- Bounds are UTC month starts in epoch seconds. Begin with one partition up to the next month; MessagePartitions
+-- adds the following months by splitting pmax, which stays empty.
+ALTER TABLE messages DROP FOREIGN KEY messages_ibfk_1, DROP FOREIGN KEY messages_ibfk_2, DROP FOREIGN KEY messages_ibfk_3;
+  -- (names as shown by SHOW CREATE TABLE messages)
+ALTER TABLE messages DROP PRIMARY KEY, ADD PRIMARY KEY (id, created_at),
+  MODIFY created_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP;
+ALTER TABLE messages PARTITION BY RANGE (UNIX_TIMESTAMP(created_at)) (
+  PARTITION p202610 VALUES LESS THAN (1793491200), -- everything before 2026-11-01 00:00 UTC
+  PARTITION pmax VALUES LESS THAN MAXVALUE
+);
+
 2) Build & Run server
+ - Needs JDK 21 or newer in every I/O mode (the code calls the virtual-thread API directly, so it doesn't
+   compile on older JDKs even when virtual threads aren't used).
  - Compile: javac -cp .:mysql-connector-java-8.0.33.jar server/*.java
  - Run: java -cp .:mysql-connector-java-8.0.33.jar server.ChatServer 9000 jdbc:mysql://localhost:3306/chatdb dbuser dbpass
+ - NIO mode (a few selector threads instead of one thread per client):
+   java -Dchat.io=nio -Dchat.io.threads=4 -Dchat.workers=32 -cp .:mysql-connector-java-8.0.33.jar server.ChatServer 9000 ...
+   chat.io.threads = selector threads (default cores/2), chat.workers = threads running commands / DB calls (default cores*4).
+ - Virtual-thread mode (one virtual thread per client instead of a platform thread):
+   java -Dchat.io=virtual -cp .:mysql-connector-j-9.0.0.jar server.ChatServer 9000 ...
+   Use Connector/J 9.x here: older drivers guard socket I/O with synchronized blocks, which pins the
+   carrier thread while waiting on MySQL. Check with -Djdk.tracePinnedThreads=short.
+ - Database pool: -Dchat.db.poolSize=16 (max connections), -Dchat.db.acquireTimeoutMs=5000,
+   -Dchat.db.stmtCacheSize=64 (prepared statements cached per connection).
+   -Dchat.stats.intervalSec=60 prints pool and journal metrics (in use, acquires, timeouts, wait times, queued messages).
+ - LOGIN/REGISTER: passwords are hashed with PBKDF2 (-Dchat.auth.iterations=210000) on -Dchat.auth.threads
+   (default: cores) threads; -Dchat.auth.queue=2048 checks may wait, more get LOGIN_FAIL and retry later.
+   User rows are cached for -Dchat.auth.cacheSec=60 and loaded up to 128 per query, so a reconnect storm
+   costs a few queries and each distinct password one hash.
+ - Messages are written behind in batches: -Dchat.journal.capacity=10000 (queue bound; senders block when full),
+   -Dchat.journal.batchSize=500, -Dchat.journal.flushMs=50. Append rewriteBatchedStatements=true to the JDBC URL,
+   e.g. jdbc:mysql://localhost:3306/chatdb?rewriteBatchedStatements=true, so batches become multi-row INSERTs.
+   The queue is drained on normal shutdown (SIGTERM / Ctrl+C); kill -9 loses what was still queued.
+ - Shutdown and deploys: on SIGTERM the server stops accepting, sends every client RECONNECT|<ms> with ms random
+   below -Dchat.drain.spreadMs=10000, gives queued output -Dchat.drain.timeoutMs=5000 to go out, closes the
+   connections (without an OFFLINE for each user) and then flushes the journal. MainApp reconnects after that
+   delay and resumes; a lost connection is retried after 1, 2, 4 ... 30 s (jittered).
+   Hot restart on one host: run both versions with -Dchat.reusePort=true (SO_REUSEPORT, Linux), start the new
+   one on the same port, then SIGTERM the old one; new connections reach the new process throughout. (Java
+   can't hand a listening socket to another process, so the port is shared this way instead.)
+ - Binary protocol: a client that sends PROTO|BIN as its first line (before LOGIN) gets PROTO_OK|BIN and from
+   then on both sides exchange frames: int32 length, u8 opcode (see server/Op), then per field an int32 length
+   and UTF-8 bytes. Content may then contain '|' or newlines. ChatClient.connect(true) negotiates it and still
+   hands lines to startReading() (or use startReadingFrames() / send(command, fields...) directly).
+ - Outbound queues: every connection buffers at most -Dchat.out.capacity=1024 frames; when a client
+   can't keep up, -Dchat.out.overflow=COALESCE (default; replaces a queued frame with the same coalesce key,
+   else disconnects), DROP (discards new lines) or DISCONNECT decides what happens. One presence flush is a
+   single frame however many users changed, and GET_ONLINE / GET_USERS replies wait for the client to read
+   whenever its queue is half full, so neither counts against a client that keeps up. Queue depths show up
+   in the stats line.
+   Queued frames sit in pooled direct buffers shared by all their recipients (-Dchat.out.poolMB=64); NIO
+   connections write them straight from there, many per call.
+ - Group messages are encoded once and put into the members' outbound queues by -Dchat.fanout.threads
+   (default: half the cores) delivery workers, each member always by the same one, so sending to a group of
+   thousands takes the sender as long as sending to a group of two. -Dchat.fanout.queue=4096 messages may wait
+   per worker; beyond that the sender waits for room, so every member still gets a group's messages in seq order.
+ - Presence: logins/logouts reach clients as ONLINE|user / OFFLINE|user, batched every -Dchat.presence.flushMs=250.
+   The user directory (ids and names of all users) is kept in memory, loaded at startup and refreshed every
+   -Dchat.users.refreshSec=30 seconds for users registered through other nodes; plan ~60 bytes per user.
+   Clients page through it with GET_USERS|<cursor>|<pageSize>|<prefix>: the users whose name starts with
+   prefix (optional), in name order, as USER lines ending with USER_MORE|<cursor> (pass it back for the
+   next page) or USER_END; an empty cursor starts at the beginning. The current online set comes with
+   GET_ONLINE. Plain GET_USERS still returns the whole directory for old clients.
+ - Offline delivery: a private message to a user who isn't logged in anywhere is also written to pending_messages.
+   After LOGIN_OK the server sends that backlog oldest first in pages of -Dchat.pending.pageSize=200:
+   PENDING|from|time|content lines, then PENDING_END|<lastId> (bare PENDING_END when nothing is left). The client
+   answers ACK_PENDING|<lastId>, which deletes the page and brings the next one; unacknowledged pages come again at
+   the next login.
+ - Resumable sessions: a client that sends PROTO|SEQ gets every message with its conversation and position in it:
+   INCOMING_PRIVATE_SEQ|conv|seq|from|content, INCOMING_GROUP_SEQ|conv|seq|groupId|from|content, and SENT|conv|seq
+   for its own private messages. It acknowledges with ACK|conv|seq (everything up to seq received; written to
+   conversation_acks every -Dchat.acks.flushMs=1000). After reconnecting, RESUME|conv|seq replays only the messages
+   after seq (pages of 500 ending in RESUME_MORE|conv|seq or RESUME_END|conv|seq); a bare RESUME lists the
+   conversations with news since the stored ACKs. ChatClient.useSequencing/resume do all of this for the UI.
+   Not available in cluster mode (nodes can't number a shared conversation without coordinating). With
+   -Dchat.store=log the log directory must be new: its records now carry the seq.
+ - History is paged newest first: HISTORY_PRIVATE|<user>|<beforeId>|<limit> (or HISTORY_GROUP|<id>|...) streams up to
+   <limit> (default 100, max 500) HISTORY_*_LINE rows, then HISTORY_*_END|<beforeId for the next older page>, or a bare
+   HISTORY_*_END at the start of the conversation. Leave beforeId empty for the newest page. Add useCursorFetch=true to
+   the JDBC URL so rows are fetched -Dchat.history.fetchSize=100 at a time instead of all at once.
+   The history queries need the conv_key column and indexes from section 1 (see the ALTER TABLE for existing
+   databases); bench/HistoryQueryBench seeds 10M/100M rows and compares old and new query latency.
+ - Partitions and archive: with the partitioned schema from section 1, -Dchat.partitions.manage=true keeps monthly
+   partitions ready -Dchat.partitions.ahead=2 months ahead and, once a month is older than -Dchat.partitions.hotMonths=6,
+   copies it to gzip segment files in -Dchat.archive.dir=archive and drops the partition. History pages continue
+   into the archive transparently once the live table runs out. Back up the archive directory with the database;
+   a server without partition management still reads an existing archive directory.
+ - Message store: -Dchat.store=log keeps messages in local append-only segment files (-Dchat.log.dir=message-log,
+   -Dchat.log.segmentMB=64 each) instead of the messages table; users, groups and logins still use MySQL. Records are
+   CRC-checked and the per-conversation index is rebuilt from the files on startup. -Dchat.log.retentionDays=N drops
+   whole segments once their newest message is N days old (default 0 keeps everything); -Dchat.log.fsync=true forces every batch to disk, without
+   it a machine crash (not a server crash) can lose the last few seconds. Back up the directory with the database.
+ - History cache: the newest -Dchat.history.cacheSize=200 messages of each active conversation are kept in memory
+   (all conversations together within -Dchat.history.cacheMB=64, least recently used dropped first) and pages they
+   cover are answered without MySQL. Hit/miss counts are in the stats line. -Dchat.history.cacheSize=0 turns it off.
+ - Cluster: several servers can share the users. Every node gets the same -Dchat.cluster.nodes list
+   (id@host:clusterPort/clientPort) and its own -Dchat.cluster.self, e.g. two nodes on one machine:
+     java -Dchat.cluster.nodes=1@localhost:9100/9000,2@localhost:9101/9001 -Dchat.cluster.self=1 server.ChatServer 9000 ...
+     java -Dchat.cluster.nodes=1@localhost:9100/9000,2@localhost:9101/9001 -Dchat.cluster.self=2 server.ChatServer 9001 ...
+   Nodes tell each other who is logged in (GET_ONLINE and ONLINE/OFFLINE cover the whole cluster) and forward
+   private and group messages to the node the recipient is on, batched over one TCP link per peer. All nodes must
+   use the same MySQL database and the default message store; the history cache is off in cluster mode.
+   -Dchat.cluster.assign=hash pins each user to one node: LOGIN elsewhere is answered with REDIRECT|host|port.
+ - Load test: java client.LoadBench localhost 9000 10000 (see the comment in LoadBench for the 1k/10k/50k runs)
+ - Incoming lines/frames are parsed in place (server/CommandParser) and dispatched through a table indexed by
+   opcode, so routing a command allocates nothing. bench/DispatchBenchmark compares it with the old split()
+   path; it needs JMH on the classpath, run with -prof gc to see bytes allocated per command.
 
 3) Build & Run client (JavaFX required)
  - Compile: javac -cp .:path/to/javafx/lib/* client/*.java
  - Run: java --module-path /path/to/javafx/lib --add-modules javafx.controls,javafx.fxml client.MainApp
 
 4) Notes & next steps
- - Passwords are stored in plaintext here for brevity. Replace with bcrypt or Argon2 hashing.
+ - Passwords are stored as PBKDF2-HMAC-SHA256 hashes (server/AuthService). Rows from before that still hold the
+   plaintext password; each is rewritten hashed at the user's next login.
  - Protocol is a simple pipe-separated text commands. For reliability, replace with JSON (Gson/Jackson) and handle escaping.
  - For scaling consider using Netty, WebSockets (for browser clients), and message broker (Redis/PubSub).
  - Add file-transfer, typing indicators, presence, profile pictures, and better error handling.